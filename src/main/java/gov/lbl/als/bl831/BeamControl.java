@@ -1,16 +1,21 @@
 package gov.lbl.als.bl831;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.swing.SwingUtilities;
+
 /**
  * A thread that reads circle control commands from a stream, parses them, and
  * sends the appropriate commands to the video widget which actually renders the
- * circle.
+ * circle. Also switches between cameras on a <code>camera NAME</code> command,
+ * exports the video recording on <code>export_video SECONDS</code>, and saves
+ * the next video frame on <code>snapshot FILE</code>.
  */
 public class BeamControl extends Thread {
 
@@ -19,16 +24,24 @@ public class BeamControl extends Thread {
     private final Pattern        mMovePattern;
     private final Pattern        mSizePattern;
     private final Pattern        mShapePattern;
+    private final Pattern        mCameraPattern;
+    private final Pattern        mExportPattern;
+    private final Pattern        mSnapshotPattern;
+    private final VideoSource    mVideoSource;
 
     /**
      * @param input
      *        the file that we need to read commands from.
      * @param videoWidget
      *        where the circle will be rendered.
+     * @param videoSource
+     *        the video shown, for camera switching, export and snapshot
+     *        commands.
      */
-    public BeamControl(InputStream input, VideoWidget videoWidget) {
+    public BeamControl(InputStream input, VideoWidget videoWidget, VideoSource videoSource) {
         mIn = input != null ? new BufferedReader(new InputStreamReader(input)) : null;
         mVideoWidget = videoWidget;
+        mVideoSource = videoSource;
 
         setDaemon(true);
         setName("Circle Control");
@@ -38,6 +51,9 @@ public class BeamControl extends Thread {
         mSizePattern = Pattern.compile("beam_size ([0-9.]+) ([0-9.]+)",
                 Pattern.CASE_INSENSITIVE);
         mShapePattern = Pattern.compile("beam_shape ([a-z]+)", Pattern.CASE_INSENSITIVE);
+        mCameraPattern = Pattern.compile("^camera (\\S+)", Pattern.CASE_INSENSITIVE);
+        mExportPattern = Pattern.compile("^export_video ([0-9]+)", Pattern.CASE_INSENSITIVE);
+        mSnapshotPattern = Pattern.compile("^snapshot (.+)$", Pattern.CASE_INSENSITIVE);
     }
 
     @Override
@@ -84,7 +100,24 @@ public class BeamControl extends Thread {
                             if (matcher.find()) {
                                 shape(matcher.group(1));
                             } else {
-                                System.err.printf("Unknown circle command: %s\n", line);
+                                matcher = mCameraPattern.matcher(line);
+                                if (matcher.find()
+                                        && mVideoSource instanceof CameraSwitcher) {
+                                    camera(matcher.group(1));
+                                } else {
+                                    matcher = mExportPattern.matcher(line);
+                                    if (matcher.find()) {
+                                        exportVideo(matcher.group(1));
+                                    } else {
+                                        matcher = mSnapshotPattern.matcher(line);
+                                        if (matcher.find()) {
+                                            snapshot(matcher.group(1).trim());
+                                        } else {
+                                            System.err.printf("Unknown circle command: %s\n",
+                                                    line);
+                                        }
+                                    }
+                                }
                             }
                         }
                     }
@@ -109,4 +142,31 @@ public class BeamControl extends Thread {
         System.out.printf("Shape to %s\n", shape);
         mVideoWidget.setShape(shape);
     }
+
+    private void camera(String name) {
+        CameraSwitcher cameras = (CameraSwitcher) mVideoSource;
+        SwingUtilities.invokeLater(() -> cameras.show(name));
+    }
+
+    private void exportVideo(String seconds) {
+        int n;
+        try {
+            n = Integer.parseInt(seconds);
+        } catch (NumberFormatException e) {
+            System.err.printf("Invalid export_video length: %s\n", seconds);
+            return;
+        }
+        System.out.printf("Export last %s s of video\n", seconds);
+        MainFrame.exportRecording(mVideoSource, n);
+    }
+
+    private void snapshot(String path) {
+        mVideoSource.snapshot(new File(path)).whenComplete((file, ex) -> {
+            if (ex != null) {
+                System.err.printf("Unable to save snapshot %s: %s\n", path, ex.getMessage());
+            } else {
+                System.out.printf("Saved snapshot %s\n", file);
+            }
+        });
+    }
 }
@@ -0,0 +1,232 @@
+package gov.lbl.als.bl831;
+
+import java.awt.Dimension;
+import java.awt.Image;
+import java.awt.event.ActionListener;
+import java.awt.geom.Rectangle2D;
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import gov.lbl.als.bl831.metrics.VideoMetrics;
+import gov.lbl.als.bl831.video.FrameBus;
+
+/**
+ * Shows one of several named cameras and switches between them without
+ * reconnecting.
+ * <p>
+ * All cameras are started together and stay connected. The cameras in the
+ * background are throttled to no frames at all, so they keep reading their
+ * streams but do not convert, and for intra-only codecs such as MJPEG do not
+ * even decode. Switching lifts the throttle on the new camera, whose next
+ * frame is then shown: there is no connect or stream probe to wait for.
+ */
+public class CameraSwitcher implements VideoSource {
+
+    /**
+     * Name of the camera given with <code>-v</code>.
+     */
+    public static final String MAIN_CAMERA = "main";
+
+    /**
+     * Bound property fired by {@link #show(String)} with the old and new
+     * camera names.
+     */
+    public static final String ACTIVE_CAMERA_PROPERTY = "activeCamera";
+
+    private final Map<String, VideoSource> mCameras;
+    private final PropertyChangeSupport    mChangeSupport = new PropertyChangeSupport(this);
+    private volatile VideoSource           mActive;
+    private String                         mActiveName;
+    private volatile double                mFrameRateLimit = Double.POSITIVE_INFINITY;
+
+    /**
+     * @param cameras
+     *        the cameras by name. The first one is shown at start.
+     */
+    public CameraSwitcher(Map<String, ? extends VideoSource> cameras) {
+        if (cameras.isEmpty()) {
+            throw new IllegalArgumentException("No cameras");
+        }
+        mCameras = Collections.unmodifiableMap(new LinkedHashMap<>(cameras));
+        mActiveName = mCameras.keySet().iterator().next();
+        mActive = mCameras.get(mActiveName);
+    }
+
+    /**
+     * @return the names of all cameras, in the order given.
+     */
+    public Iterable<String> getNames() {
+        return mCameras.keySet();
+    }
+
+    /**
+     * @param name
+     *        a camera name.
+     * @return <code>true</code> if there is a camera of that name.
+     */
+    public boolean hasCamera(String name) {
+        return mCameras.containsKey(name);
+    }
+
+    /**
+     * @param name
+     *        a camera name.
+     * @return the camera of that name, or null if there is none.
+     */
+    public VideoSource getCamera(String name) {
+        return mCameras.get(name);
+    }
+
+    /**
+     * @param listener
+     *        notified on the event dispatch thread of every switch, as a
+     *        change of {@link #ACTIVE_CAMERA_PROPERTY}.
+     */
+    public void addPropertyChangeListener(PropertyChangeListener listener) {
+        mChangeSupport.addPropertyChangeListener(listener);
+    }
+
+    /**
+     * Switches the display to another camera. Must be called on the event
+     * dispatch thread.
+     *
+     * @param name
+     *        the camera to show.
+     * @return <code>false</code> if there is no camera of that name.
+     */
+    public boolean show(String name) {
+        VideoSource camera = mCameras.get(name);
+        if (camera == null) {
+            System.err.printf("Unknown camera: %s%n", name);
+            return false;
+        }
+        if (camera != mActive) {
+            System.out.printf("Switching video to camera %s%n", name);
+            mActive.setFrameRateLimit(0);
+            // Its last frame shown may be long gone from the screen, so a
+            // still scene must not be skipped as a repeat of it
+            camera.refresh();
+            camera.setFrameRateLimit(mFrameRateLimit);
+            String oldName = mActiveName;
+            mActive = camera;
+            mActiveName = name;
+            mChangeSupport.firePropertyChange(ACTIVE_CAMERA_PROPERTY, oldName, name);
+        }
+        return true;
+    }
+
+    /**
+     * @return the name of the camera being shown.
+     */
+    public String getActiveName() {
+        return mActiveName;
+    }
+
+    @Override
+    public Image getImage() {
+        return mActive.getImage();
+    }
+
+    @Override
+    public void setDisplaySize(Dimension size) {
+        for (VideoSource camera : mCameras.values()) {
+            camera.setDisplaySize(size);
+        }
+    }
+
+    /**
+     * Passes the viewport to every camera, so it stays the same across a
+     * switch.
+     *
+     * @return <code>true</code> only if every camera crops itself.
+     */
+    @Override
+    public boolean setViewport(Rectangle2D viewport) {
+        boolean cropping = true;
+        for (VideoSource camera : mCameras.values()) {
+            cropping &= camera.setViewport(viewport);
+        }
+        return cropping;
+    }
+
+    /**
+     * Limits the camera being shown. Cameras in the background stay at no
+     * frames at all regardless.
+     */
+    @Override
+    public void setFrameRateLimit(double fps) {
+        mFrameRateLimit = fps;
+        mActive.setFrameRateLimit(fps);
+    }
+
+    /**
+     * Exports the recording of the camera being shown.
+     */
+    @Override
+    public CompletableFuture<File> exportRecording(int seconds) {
+        return mActive.exportRecording(seconds);
+    }
+
+    /**
+     * Takes the snapshot from the camera being shown.
+     */
+    @Override
+    public CompletableFuture<File> snapshot(File file) {
+        return mActive.snapshot(file);
+    }
+
+    /**
+     * @return the frame bus of the camera being shown. Subscriptions stay
+     *         with that camera across a switch.
+     */
+    @Override
+    public FrameBus getFrameBus() {
+        return mActive.getFrameBus();
+    }
+
+    /**
+     * @return the metrics of the camera being shown. Each camera keeps its
+     *         own, so these change with a switch.
+     */
+    @Override
+    public VideoMetrics getMetrics() {
+        return mActive.getMetrics();
+    }
+
+    /**
+     * Passes on new images from the camera being shown only.
+     */
+    @Override
+    public void addActionListener(ActionListener listener) {
+        for (VideoSource camera : mCameras.values()) {
+            camera.addActionListener(e -> {
+                if (camera == mActive) {
+                    listener.actionPerformed(e);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        for (VideoSource camera : mCameras.values()) {
+            if (camera != mActive) {
+                camera.setFrameRateLimit(0);
+            }
+            camera.start();
+        }
+    }
+
+    @Override
+    public void stop() throws IOException {
+        for (VideoSource camera : mCameras.values()) {
+            camera.stop();
+        }
+    }
+}
@@ -2,7 +2,10 @@ package gov.lbl.als.bl831;
 
 import java.awt.RenderingHints;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeSet;
 
 import picocli.CommandLine.Command;
 import picocli.CommandLine.ITypeConverter;
@@ -58,6 +61,18 @@ public class CommandLineArgs {
     @Option(names = {"--dev-offline"}, description = "use offline video playback and do not connect to touch server.")
     private boolean devOffline = false;
 
+    @Option(names = {"--v4l2-mmap"},
+            description = "capture raw YUYV/NV12 V4L2 devices on mapped kernel buffers instead of through FFmpeg.")
+    private boolean v4l2Mmap = false;
+
+    @Option(names = {"--grayscale"},
+            description = "show the video in grayscale, from the luma of each frame only, to save CPU and memory.")
+    private boolean grayscale = false;
+
+    @Option(names = {"--measure-latency"},
+            description = "play the offline sample video with time-stamped frames and report capture-to-paint latency.")
+    private boolean measureLatency = false;
+
     @Option(names = {"-e", "--emulate"}, description = "emulate old-style touch coordinates for output.")
     private boolean emulate = false;
 
@@ -71,6 +86,62 @@ public class CommandLineArgs {
     )
     private Object interpolation = null;
 
+    @Option(names = {"--decode-threads"},
+            description = "number of threads used to decode live video. Default: 0 (one per core).")
+    private int decodeThreads = 0;
+
+    @Option(names = {"--convert-threads"},
+            description = "number of threads used to color convert and scale video, or 0 for one per core. Default: 2.")
+    private int convertThreads = 2;
+
+    @Option(names = {"--stall-timeout"},
+            description = "milliseconds without a video frame before the camera is reconnected. Default: 3000.")
+    private int stallTimeout = 3000;
+
+    @Option(names = {"--low-latency"},
+            description = "skip video frames that queued up while decoding fell behind and always show the newest one.")
+    private boolean lowLatency = false;
+
+    @Option(names = {"--sample-cache"},
+            description = "megabytes of memory for keeping the decoded offline sample video, so later loops are not decoded again; frames are still converted for display. Default: 0 (off).")
+    private int sampleCache = 0;
+
+    @Option(names = {"--digital-zoom"},
+            description = "zoom the video with the mouse wheel and pan it by dragging, without moving the beamline optics.")
+    private boolean digitalZoom = false;
+
+    @Option(names = {"--idle-timeout"},
+            description = "seconds without touch, mouse or key input before the video frame rate is lowered. Default: 0 (never).")
+    private int idleTimeout = 0;
+
+    @Option(names = {"--idle-fps"},
+            description = "video frame rate while idle, or 0 to pause the video. Default: 2.")
+    private double idleFps = 2.0;
+
+    @Option(names = {"--camera"}, paramLabel = "NAME=URI",
+            description = "an additional named video source, kept connected in the background so the display can switch to it instantly. May be repeated. The -v source is named 'main', so that name cannot be used here.")
+    private Map<String, String> cameras = new LinkedHashMap<>();
+
+    @Option(names = {"--zoom-in-camera"},
+            description = "name of the camera to show when High Mag (ZoomIn) is pressed.")
+    private String zoomInCamera = "";
+
+    @Option(names = {"--zoom-out-camera"},
+            description = "name of the camera to show when Low Mag (ZoomOut) is pressed.")
+    private String zoomOutCamera = "";
+
+    @Option(names = {"--record-dir"},
+            description = "directory to keep a recording of the last minutes of live video in, without re-encoding. Default: none (not recorded).")
+    private String recordDir = "";
+
+    @Option(names = {"--record-seconds"},
+            description = "seconds of live video to keep in the recording. Default: 300.")
+    private int recordSeconds = 300;
+
+    @Option(names = {"--stream-port"},
+            description = "TCP port to serve the camera video on to other viewers, as MJPEG over HTTP. Default: 0 (off).")
+    private int streamPort = 0;
+
     public String getVideoUri() {
         return videoUri;
     }
@@ -91,6 +162,18 @@ public class CommandLineArgs {
         return devOffline;
     }
 
+    public boolean getV4l2Mmap() {
+        return v4l2Mmap;
+    }
+
+    public boolean getGrayscale() {
+        return grayscale;
+    }
+
+    public boolean getMeasureLatency() {
+        return measureLatency;
+    }
+
     public boolean getEmulate() {
         return emulate;
     }
@@ -103,6 +186,62 @@ public class CommandLineArgs {
         return interpolation;
     }
 
+    public int getDecodeThreads() {
+        return decodeThreads;
+    }
+
+    public int getConvertThreads() {
+        return convertThreads;
+    }
+
+    public int getStallTimeout() {
+        return stallTimeout;
+    }
+
+    public boolean getLowLatency() {
+        return lowLatency;
+    }
+
+    public int getSampleCache() {
+        return sampleCache;
+    }
+
+    public boolean getDigitalZoom() {
+        return digitalZoom;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public double getIdleFps() {
+        return idleFps;
+    }
+
+    public Map<String, String> getCameras() {
+        return cameras;
+    }
+
+    public String getZoomInCamera() {
+        return zoomInCamera;
+    }
+
+    public String getZoomOutCamera() {
+        return zoomOutCamera;
+    }
+
+    public String getRecordDir() {
+        return recordDir;
+    }
+
+    public int getRecordSeconds() {
+        return recordSeconds;
+    }
+
+    public int getStreamPort() {
+        return streamPort;
+    }
+
     /**
      * Applies defaults from a config file properties. Only sets values that
      * were not explicitly provided on the command line.
@@ -122,6 +261,18 @@ public class CommandLineArgs {
                 && props.containsKey("cli.touch")) {
             touchUri = props.getProperty("cli.touch");
         }
+        if (!parseResult.hasMatchedOption("--v4l2-mmap")
+                && props.containsKey("cli.v4l2-mmap")) {
+            v4l2Mmap = Boolean.parseBoolean(props.getProperty("cli.v4l2-mmap"));
+        }
+        if (!parseResult.hasMatchedOption("--low-latency")
+                && props.containsKey("cli.low-latency")) {
+            lowLatency = Boolean.parseBoolean(props.getProperty("cli.low-latency"));
+        }
+        if (!parseResult.hasMatchedOption("--grayscale")
+                && props.containsKey("cli.grayscale")) {
+            grayscale = Boolean.parseBoolean(props.getProperty("cli.grayscale"));
+        }
         if (!parseResult.hasMatchedOption("--emulate")
                 && props.containsKey("cli.emulate")) {
             emulate = Boolean.parseBoolean(props.getProperty("cli.emulate"));
@@ -140,5 +291,101 @@ public class CommandLineArgs {
                         props.getProperty("cli.interpolation"));
             }
         }
+        if (!parseResult.hasMatchedOption("--decode-threads")
+                && props.containsKey("cli.decode-threads")) {
+            try {
+                decodeThreads = Integer.parseInt(props.getProperty("cli.decode-threads"));
+            } catch (NumberFormatException e) {
+                System.err.printf("Invalid decode-threads in config file: %s%n",
+                        props.getProperty("cli.decode-threads"));
+            }
+        }
+        if (!parseResult.hasMatchedOption("--convert-threads")
+                && props.containsKey("cli.convert-threads")) {
+            try {
+                convertThreads = Integer.parseInt(props.getProperty("cli.convert-threads"));
+            } catch (NumberFormatException e) {
+                System.err.printf("Invalid convert-threads in config file: %s%n",
+                        props.getProperty("cli.convert-threads"));
+            }
+        }
+        if (!parseResult.hasMatchedOption("--stall-timeout")
+                && props.containsKey("cli.stall-timeout")) {
+            try {
+                stallTimeout = Integer.parseInt(props.getProperty("cli.stall-timeout"));
+            } catch (NumberFormatException e) {
+                System.err.printf("Invalid stall-timeout in config file: %s%n",
+                        props.getProperty("cli.stall-timeout"));
+            }
+        }
+        if (!parseResult.hasMatchedOption("--digital-zoom")
+                && props.containsKey("cli.digital-zoom")) {
+            digitalZoom = Boolean.parseBoolean(props.getProperty("cli.digital-zoom"));
+        }
+        if (!parseResult.hasMatchedOption("--idle-timeout")
+                && props.containsKey("cli.idle-timeout")) {
+            try {
+                idleTimeout = Integer.parseInt(props.getProperty("cli.idle-timeout"));
+            } catch (NumberFormatException e) {
+                System.err.printf("Invalid idle-timeout in config file: %s%n",
+                        props.getProperty("cli.idle-timeout"));
+            }
+        }
+        if (!parseResult.hasMatchedOption("--idle-fps")
+                && props.containsKey("cli.idle-fps")) {
+            try {
+                idleFps = Double.parseDouble(props.getProperty("cli.idle-fps"));
+            } catch (NumberFormatException e) {
+                System.err.printf("Invalid idle-fps in config file: %s%n",
+                        props.getProperty("cli.idle-fps"));
+            }
+        }
+        if (!parseResult.hasMatchedOption("--camera")) {
+            for (String key : new TreeSet<>(props.stringPropertyNames())) {
+                if (key.startsWith("cli.camera.")) {
+                    cameras.put(key.substring("cli.camera.".length()),
+                            props.getProperty(key));
+                }
+            }
+        }
+        if (!parseResult.hasMatchedOption("--zoom-in-camera")
+                && props.containsKey("cli.zoom-in-camera")) {
+            zoomInCamera = props.getProperty("cli.zoom-in-camera");
+        }
+        if (!parseResult.hasMatchedOption("--zoom-out-camera")
+                && props.containsKey("cli.zoom-out-camera")) {
+            zoomOutCamera = props.getProperty("cli.zoom-out-camera");
+        }
+        if (!parseResult.hasMatchedOption("--record-dir")
+                && props.containsKey("cli.record-dir")) {
+            recordDir = props.getProperty("cli.record-dir");
+        }
+        if (!parseResult.hasMatchedOption("--record-seconds")
+                && props.containsKey("cli.record-seconds")) {
+            try {
+                recordSeconds = Integer.parseInt(props.getProperty("cli.record-seconds"));
+            } catch (NumberFormatException e) {
+                System.err.printf("Invalid record-seconds in config file: %s%n",
+                        props.getProperty("cli.record-seconds"));
+            }
+        }
+        if (!parseResult.hasMatchedOption("--stream-port")
+                && props.containsKey("cli.stream-port")) {
+            try {
+                streamPort = Integer.parseInt(props.getProperty("cli.stream-port"));
+            } catch (NumberFormatException e) {
+                System.err.printf("Invalid stream-port in config file: %s%n",
+                        props.getProperty("cli.stream-port"));
+            }
+        }
+        if (!parseResult.hasMatchedOption("--sample-cache")
+                && props.containsKey("cli.sample-cache")) {
+            try {
+                sampleCache = Integer.parseInt(props.getProperty("cli.sample-cache"));
+            } catch (NumberFormatException e) {
+                System.err.printf("Invalid sample-cache in config file: %s%n",
+                        props.getProperty("cli.sample-cache"));
+            }
+        }
     }
 }
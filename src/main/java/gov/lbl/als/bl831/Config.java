@@ -21,17 +21,41 @@ public class Config {
     private final String  mTouchHostname;
     private final int     mTouchPort;
     private final boolean mDevOffline;
+    private final boolean mMeasureLatency;
     private final boolean mEmulate;
     private final String  mWindow;
     private final Object  mInterpolationHint;
+    private final int     mDecodeThreads;
+    private final int     mConvertThreads;
+    private final int     mStallTimeout;
+    private final boolean mLowLatency;
+    private final boolean mV4L2Mmap;
+    private final boolean mGrayscale;
+    private final int     mSampleCache;
+    private final boolean mDigitalZoom;
+    private final int     mIdleTimeout;
+    private final double  mIdleFps;
+    private final Map<String, String> mCameras;
+    private final String  mZoomInCamera;
+    private final String  mZoomOutCamera;
+    private final File    mRecordDir;
+    private final int     mRecordSeconds;
+    private final int     mStreamPort;
     private final Map<VirtualButton, ButtonConfig> mButtonOverrides;
     private final Color   mBackground;
     private final Color   mBorderColor;
     private final boolean mBorderlessButtons;
 
     public Config(String videoUri, String touchHostname, int touchPort,
-                  boolean devOffline, boolean emulate, String window,
-                  Object interpolationHint,
+                  boolean devOffline, boolean measureLatency,
+                  boolean emulate, String window,
+                  Object interpolationHint, int decodeThreads, int convertThreads,
+                  int stallTimeout, boolean lowLatency,
+                  boolean v4l2Mmap, boolean grayscale, int sampleCache,
+                  boolean digitalZoom,
+                  int idleTimeout, double idleFps, Map<String, String> cameras,
+                  String zoomInCamera, String zoomOutCamera,
+                  File recordDir, int recordSeconds, int streamPort,
                   Map<VirtualButton, ButtonConfig> buttonOverrides,
                   Color background, Color borderColor,
                   boolean borderlessButtons) {
@@ -39,9 +63,26 @@ public class Config {
         mTouchHostname = touchHostname;
         mTouchPort = touchPort;
         mDevOffline = devOffline;
+        mMeasureLatency = measureLatency;
         mEmulate = emulate;
         mWindow = window;
         mInterpolationHint = interpolationHint;
+        mDecodeThreads = decodeThreads;
+        mConvertThreads = convertThreads;
+        mStallTimeout = stallTimeout;
+        mLowLatency = lowLatency;
+        mV4L2Mmap = v4l2Mmap;
+        mGrayscale = grayscale;
+        mSampleCache = sampleCache;
+        mDigitalZoom = digitalZoom;
+        mIdleTimeout = idleTimeout;
+        mIdleFps = idleFps;
+        mCameras = cameras;
+        mZoomInCamera = zoomInCamera;
+        mZoomOutCamera = zoomOutCamera;
+        mRecordDir = recordDir;
+        mRecordSeconds = recordSeconds;
+        mStreamPort = streamPort;
         mButtonOverrides = buttonOverrides;
         mBackground = background;
         mBorderColor = borderColor;
@@ -93,11 +134,26 @@ public class Config {
         }
 
         return new Config(cla.getVideoUri(), touchHostname, touchPort,
-                cla.getDevOffline(), cla.getEmulate(), cla.getWindow(),
-                cla.getInterpolation(), buttonOverrides,
+                cla.getDevOffline() || cla.getMeasureLatency(),
+                cla.getMeasureLatency(), cla.getEmulate(), cla.getWindow(),
+                cla.getInterpolation(), cla.getDecodeThreads(), cla.getConvertThreads(),
+                cla.getStallTimeout(), cla.getLowLatency(), cla.getV4l2Mmap(),
+                cla.getGrayscale(), cla.getSampleCache(),
+                cla.getDigitalZoom(), cla.getIdleTimeout(), cla.getIdleFps(),
+                cla.getCameras(), emptyToNull(cla.getZoomInCamera()),
+                emptyToNull(cla.getZoomOutCamera()),
+                cla.getRecordDir().isEmpty() ? null : new File(cla.getRecordDir()),
+                cla.getRecordSeconds(), cla.getStreamPort(), buttonOverrides,
                 background, borderColor, borderlessButtons);
     }
 
+    /**
+     * @return the value, or null if it is null or empty.
+     */
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
     /**
      * Parses button override properties from the config file. Looks for
      * keys matching button.&lt;Name&gt;.icon, button.&lt;Name&gt;.command,
@@ -227,6 +283,14 @@ public class Config {
         return mDevOffline;
     }
 
+    /**
+     * @return <code>true</code> if frames should be time-stamped to measure
+     *         capture-to-paint latency. Implies dev-offline mode.
+     */
+    public boolean isMeasureLatency() {
+        return mMeasureLatency;
+    }
+
     /**
      * @return <code>true</code> if old style touch coordinates should be sent.
      */
@@ -274,6 +338,131 @@ public class Config {
         return mInterpolationHint;
     }
 
+    /**
+     * @return the number of threads used to decode live video, or 0 for one
+     *         per core.
+     */
+    public int getDecodeThreads() {
+        return mDecodeThreads;
+    }
+
+    /**
+     * @return the number of threads used to convert and scale video frames,
+     *         or 0 for one per core.
+     */
+    public int getConvertThreads() {
+        return mConvertThreads;
+    }
+
+    /**
+     * @return milliseconds without a video frame before the source is
+     *         reconnected.
+     */
+    public int getStallTimeout() {
+        return mStallTimeout;
+    }
+
+    /**
+     * @return <code>true</code> if live video should skip frames that queued
+     *         up to always show the newest one.
+     */
+    public boolean isLowLatency() {
+        return mLowLatency;
+    }
+
+    /**
+     * @return <code>true</code> if raw V4L2 formats should be captured on
+     *         mapped kernel buffers instead of through FFmpeg.
+     */
+    public boolean isV4L2Mmap() {
+        return mV4L2Mmap;
+    }
+
+    /**
+     * @return <code>true</code> if the video should be shown in grayscale.
+     */
+    public boolean isGrayscale() {
+        return mGrayscale;
+    }
+
+    /**
+     * @return megabytes of memory for replaying the offline sample without
+     *         decoding it again, or 0 to decode every loop.
+     */
+    public int getSampleCache() {
+        return mSampleCache;
+    }
+
+    /**
+     * @return <code>true</code> if the video can be zoomed and panned on
+     *         screen, independently of the beamline zoom.
+     */
+    public boolean isDigitalZoom() {
+        return mDigitalZoom;
+    }
+
+    /**
+     * @return seconds without user input before the video frame rate is
+     *         lowered, or 0 to never lower it.
+     */
+    public int getIdleTimeout() {
+        return mIdleTimeout;
+    }
+
+    /**
+     * @return the video frame rate while idle, or 0 to pause the video.
+     */
+    public double getIdleFps() {
+        return mIdleFps;
+    }
+
+    /**
+     * @return the additional cameras by name, in the order given, each as a
+     *         video source URI.
+     */
+    public Map<String, String> getCameras() {
+        return mCameras;
+    }
+
+    /**
+     * @return the camera to show when ZoomIn is pressed, or null to leave
+     *         the video alone.
+     */
+    public String getZoomInCamera() {
+        return mZoomInCamera;
+    }
+
+    /**
+     * @return the camera to show when ZoomOut is pressed, or null to leave
+     *         the video alone.
+     */
+    public String getZoomOutCamera() {
+        return mZoomOutCamera;
+    }
+
+    /**
+     * @return the directory the live video is recorded in, or null if it is
+     *         not recorded.
+     */
+    public File getRecordDir() {
+        return mRecordDir;
+    }
+
+    /**
+     * @return seconds of live video to keep in the recording.
+     */
+    public int getRecordSeconds() {
+        return mRecordSeconds;
+    }
+
+    /**
+     * @return the TCP port the video is served to other viewers on, or 0 if
+     *         it is not served.
+     */
+    public int getStreamPort() {
+        return mStreamPort;
+    }
+
     /**
      * @return button overrides from the config file, keyed by VirtualButton.
      */
@@ -6,6 +6,9 @@ import java.awt.GridBagLayout;
 import java.awt.Insets;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
@@ -24,6 +27,7 @@ public class CrystalCenteringPanel extends JPanel {
     private JButton          mLightSliderButton;
     private final ClickSink  mClickSink;
     private final Config     mConfig;
+    private final List<Consumer<VirtualButton>> mButtonListeners = new ArrayList<>();
 
     /**
      * @param clickSink
@@ -357,6 +361,20 @@ public class CrystalCenteringPanel extends JPanel {
         } else {
             mClickSink.buttonPressed(virtualButton);
         }
+        for (Consumer<VirtualButton> listener : mButtonListeners) {
+            listener.accept(virtualButton);
+        }
+    }
+
+    /**
+     * Adds a listener that is told about every button press on the event
+     * dispatch thread, after the press has gone to the click sink.
+     *
+     * @param listener
+     *        the listener.
+     */
+    public void addButtonListener(Consumer<VirtualButton> listener) {
+        mButtonListeners.add(listener);
     }
 
     /**
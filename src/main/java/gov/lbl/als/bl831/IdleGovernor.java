@@ -0,0 +1,96 @@
+package gov.lbl.als.bl831;
+
+import java.awt.AWTEvent;
+import java.awt.Toolkit;
+import java.awt.Window;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+import javax.swing.Timer;
+
+/**
+ * Turns the video frame rate down while nobody is using the kiosk, and back
+ * up on the first touch.
+ * <p>
+ * Any mouse, touch or key event anywhere in the application counts as
+ * activity. After the idle timeout without any, the video source is limited
+ * to the idle frame rate; while the window is iconified it shows no frames at
+ * all. The source keeps reading from the camera in either case, so the next
+ * frame after a touch is a current one.
+ */
+public class IdleGovernor {
+
+    private static final long ACTIVITY_EVENTS = AWTEvent.MOUSE_EVENT_MASK
+            | AWTEvent.MOUSE_MOTION_EVENT_MASK | AWTEvent.MOUSE_WHEEL_EVENT_MASK
+            | AWTEvent.KEY_EVENT_MASK;
+
+    private final VideoSource mVideoSource;
+    private final double      mIdleFps;
+    private final Timer       mIdleTimer;
+    private boolean           mIdle;
+    private boolean           mIconified;
+
+    /**
+     * @param videoSource
+     *        the source to throttle.
+     * @param idleTimeoutMillis
+     *        how long without activity before the frame rate is lowered.
+     * @param idleFps
+     *        the frame rate while idle, or 0 to pause the video.
+     */
+    public IdleGovernor(VideoSource videoSource, int idleTimeoutMillis, double idleFps) {
+        mVideoSource = videoSource;
+        mIdleFps = idleFps;
+        mIdleTimer = new Timer(idleTimeoutMillis, e -> {
+            mIdle = true;
+            updateFrameRate();
+        });
+        mIdleTimer.setRepeats(false);
+    }
+
+    /**
+     * Starts watching for activity. Must be called on the event dispatch
+     * thread.
+     *
+     * @param window
+     *        the window whose iconification pauses the video.
+     */
+    public void start(Window window) {
+        Toolkit.getDefaultToolkit().addAWTEventListener(e -> activity(), ACTIVITY_EVENTS);
+        window.addWindowListener(new WindowAdapter() {
+
+            @Override
+            public void windowIconified(WindowEvent e) {
+                mIconified = true;
+                updateFrameRate();
+            }
+
+            @Override
+            public void windowDeiconified(WindowEvent e) {
+                mIconified = false;
+                activity();
+                updateFrameRate();
+            }
+        });
+        mIdleTimer.start();
+    }
+
+    private void activity() {
+        if (mIdle) {
+            mIdle = false;
+            updateFrameRate();
+        }
+        mIdleTimer.restart();
+    }
+
+    private void updateFrameRate() {
+        if (mIconified) {
+            mVideoSource.setFrameRateLimit(0);
+        } else if (mIdle) {
+            System.out.printf("No activity, limiting video to %g fps%n", mIdleFps);
+            mVideoSource.setFrameRateLimit(mIdleFps);
+        } else {
+            mVideoSource.setFrameRateLimit(Double.POSITIVE_INFINITY);
+        }
+    }
+}
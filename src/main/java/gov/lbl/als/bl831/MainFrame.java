@@ -2,25 +2,33 @@ package gov.lbl.als.bl831;
 
 import java.awt.BorderLayout;
 import java.awt.Dimension;
-import java.awt.Image;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
+import java.awt.geom.Rectangle2D;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import javax.management.JMException;
 import javax.swing.AbstractAction;
 import javax.swing.BorderFactory;
 import javax.swing.JFrame;
 import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
 
+import gov.lbl.als.bl831.metrics.VideoMetrics;
 import gov.lbl.als.bl831.video.FFmpegVideoSource;
+import gov.lbl.als.bl831.video.MjpegStreamServer;
 import gov.lbl.als.bl831.video.SampleVideoSource;
 import picocli.CommandLine;
 import picocli.CommandLine.ParameterException;
@@ -35,6 +43,18 @@ public class MainFrame extends JFrame {
     public MainFrame(ClickSink clickSink, final VideoSource videoSource, InputStream input,
                      Config config) {
         final VideoWidget videoWidget = initComponents(clickSink, config);
+        final CameraSwitcher cameras = videoSource instanceof CameraSwitcher
+                ? (CameraSwitcher) videoSource : null;
+        if (cameras != null) {
+            mCrystalCenteringPanel.addButtonListener(button -> {
+                if (button == VirtualButton.ZoomIn && config.getZoomInCamera() != null) {
+                    cameras.show(config.getZoomInCamera());
+                } else if (button == VirtualButton.ZoomOut
+                        && config.getZoomOutCamera() != null) {
+                    cameras.show(config.getZoomOutCamera());
+                }
+            });
+        }
         videoSource.addActionListener(new ActionListener() {
 
             @Override
@@ -42,6 +62,33 @@ public class MainFrame extends JFrame {
                 videoWidget.setImage(videoSource.getImage());
             }
         });
+        videoWidget.addPropertyChangeListener(VideoWidget.DISPLAY_SIZE_PROPERTY,
+                e -> videoSource.setDisplaySize((Dimension) e.getNewValue()));
+        videoWidget.addPropertyChangeListener(VideoWidget.VIEWPORT_PROPERTY,
+                e -> videoWidget.setSourceCropping(
+                        videoSource.setViewport((Rectangle2D) e.getNewValue())));
+
+        videoWidget.setMetrics(videoSource.getMetrics());
+        if (cameras != null) {
+            cameras.addPropertyChangeListener(
+                    e -> videoWidget.setMetrics(cameras.getMetrics()));
+            for (String name : cameras.getNames()) {
+                VideoMetrics metrics = cameras.getCamera(name).getMetrics();
+                if (metrics != null) {
+                    try {
+                        metrics.register(name);
+                    } catch (JMException ex) {
+                        System.err.println("Unable to register video metrics. " + ex.getMessage());
+                    }
+                }
+            }
+        } else if (videoSource.getMetrics() != null) {
+            try {
+                videoSource.getMetrics().register();
+            } catch (JMException ex) {
+                System.err.println("Unable to register video metrics. " + ex.getMessage());
+            }
+        }
 
         try {
             videoSource.start();
@@ -49,11 +96,28 @@ public class MainFrame extends JFrame {
             System.err.println("Error starting video service. " + ex.getMessage());
         }
 
+        if (config.getRecordDir() != null) {
+            mCrystalCenteringPanel.getInputMap(javax.swing.JComponent.WHEN_IN_FOCUSED_WINDOW)
+                    .put(KeyStroke.getKeyStroke(KeyEvent.VK_E, KeyEvent.CTRL_DOWN_MASK),
+                            "exportVideo");
+            mCrystalCenteringPanel.getActionMap().put("exportVideo", new AbstractAction() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    exportRecording(videoSource, config.getRecordSeconds());
+                }
+            });
+        }
+
+        if (config.getIdleTimeout() > 0) {
+            new IdleGovernor(videoSource, config.getIdleTimeout() * 1000,
+                    config.getIdleFps()).start(this);
+        }
+
         //
         // Start the circle listener
         //
         BeamControl circleControl;
-        circleControl = new BeamControl(input, videoWidget);
+        circleControl = new BeamControl(input, videoWidget, videoSource);
         circleControl.start();
     }
 
@@ -136,9 +200,61 @@ public class MainFrame extends JFrame {
                 System.exit(1);
             }
 
-            final VideoSource videoSource = config.isDevOffline()
+            if (config.getCameras().containsKey(CameraSwitcher.MAIN_CAMERA)) {
+                System.err.printf("Camera name %s is reserved for the -v source.%n",
+                        CameraSwitcher.MAIN_CAMERA);
+                System.exit(1);
+            }
+
+            final FFmpegVideoSource mainSource = config.isDevOffline()
                     ? new SampleVideoSource()
                     : FFmpegVideoSource.fromUri(config.getVideoUri());
+            configureSource(mainSource, config, config.getRecordDir());
+            mainSource.setFrameCacheSize((long) config.getSampleCache() << 20);
+            if (config.isMeasureLatency()) {
+                mainSource.setLatencyStamping(true);
+                startLatencyReport(mainSource.getMetrics(), config);
+            }
+
+            MjpegStreamServer streamServer = null;
+            if (config.getStreamPort() > 0) {
+                try {
+                    streamServer = new MjpegStreamServer(config.getStreamPort());
+                    streamServer.addSource(CameraSwitcher.MAIN_CAMERA, mainSource);
+                } catch (IOException ex) {
+                    System.err.println("Unable to start video stream server. " + ex.getMessage());
+                }
+            }
+
+            final VideoSource videoSource;
+            if (config.getCameras().isEmpty()) {
+                videoSource = mainSource;
+            } else {
+                Map<String, VideoSource> cameras = new LinkedHashMap<>();
+                cameras.put(CameraSwitcher.MAIN_CAMERA, mainSource);
+                for (Map.Entry<String, String> camera : config.getCameras().entrySet()) {
+                    FFmpegVideoSource source = FFmpegVideoSource.fromUri(camera.getValue());
+                    configureSource(source, config, config.getRecordDir() != null
+                            ? new File(config.getRecordDir(), camera.getKey()) : null);
+                    if (streamServer != null) {
+                        streamServer.addSource(camera.getKey(), source);
+                    }
+                    cameras.put(camera.getKey(), source);
+                }
+                for (String name : Arrays.asList(config.getZoomInCamera(),
+                        config.getZoomOutCamera())) {
+                    if (name != null && !cameras.containsKey(name)) {
+                        System.err.printf("Unknown camera: %s%n", name);
+                        System.exit(1);
+                    }
+                }
+                videoSource = new CameraSwitcher(cameras);
+            }
+            if (streamServer != null) {
+                streamServer.start();
+                System.out.printf("Serving video on port %d as /%s.mjpg%n",
+                        config.getStreamPort(), CameraSwitcher.MAIN_CAMERA);
+            }
 
             final ClickSink clickSink;
             final InputStream inputStream;
@@ -202,27 +318,59 @@ public class MainFrame extends JFrame {
         }
     }
 
+    /**
+     * Applies the settings shared by all cameras.
+     *
+     * @param recordDir
+     *        where to record the camera, or null to not record it.
+     */
+    private static void configureSource(FFmpegVideoSource source, Config config,
+                                        File recordDir) {
+        source.setScalingInterpolation(config.getInterpolationHint());
+        source.setDecodeThreads(config.getDecodeThreads());
+        source.setConvertThreads(config.getConvertThreads());
+        source.setStallTimeout(config.getStallTimeout());
+        source.setLowLatency(config.isLowLatency());
+        source.setV4L2Mmap(config.isV4L2Mmap());
+        source.setGrayscale(config.isGrayscale());
+        if (recordDir != null) {
+            source.setRecording(recordDir, config.getRecordSeconds());
+        }
+    }
+
+    /**
+     * Exports the last part of the video recording in the background and
+     * reports failures on the console. Success is reported by the recorder.
+     */
+    static void exportRecording(VideoSource videoSource, int seconds) {
+        videoSource.exportRecording(seconds).whenComplete((file, ex) -> {
+            if (ex != null) {
+                System.err.println("Unable to export video. " + ex.getMessage());
+            }
+        });
+    }
+
     /**
      * Sets up a simulated beam overlay. Waits for the first video frame on a
      * background thread to get the source dimensions, then draws a small
-     * circle centered on the video.
+     * circle centered on the video. The frame size is read from the video
+     * widget rather than the source, since the widget is the only consumer
+     * allowed to take images from the source.
      */
     private static void setupSimulatedBeam(MainFrame frame, VideoSource videoSource) {
         new Thread(() -> {
             try {
-                Image img = null;
+                VideoWidget vw = frame.mCrystalCenteringPanel.getVideoWidget();
+                Dimension[] imageSize = new Dimension[1];
                 for (int i = 0; i < 50; i++) {
-                    img = videoSource.getImage();
-                    if (img != null && img.getWidth(null) > 0) break;
+                    SwingUtilities.invokeAndWait(() -> imageSize[0] = vw.getImageSize());
+                    if (imageSize[0] != null) break;
                     Thread.sleep(100);
                 }
-                final double srcWidth = (img != null && img.getWidth(null) > 0)
-                        ? img.getWidth(null) : 704.0;
-                final double srcHeight = (img != null && img.getHeight(null) > 0)
-                        ? img.getHeight(null) : 480.0;
+                final double srcWidth = imageSize[0] != null ? imageSize[0].width : 704.0;
+                final double srcHeight = imageSize[0] != null ? imageSize[0].height : 480.0;
                 double radius = 0.03;
                 double beamW = radius * srcHeight / srcWidth;
-                VideoWidget vw = frame.mCrystalCenteringPanel.getVideoWidget();
                 System.out.printf("VideoWidget: %dx%d, source: %.0fx%.0f, beamW=%.4f, beamH=%.4f%n",
                         vw.getSize().width, vw.getSize().height,
                         srcWidth, srcHeight, beamW, radius);
@@ -233,10 +381,35 @@ public class MainFrame extends JFrame {
                 });
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
+            } catch (InvocationTargetException e) {
+                e.printStackTrace();
             }
         }, "SimBeamSetup").start();
     }
 
+    /**
+     * Prints the capture-to-paint latency percentiles measured so far every
+     * few seconds, labelled with the settings that affect them.
+     */
+    private static void startLatencyReport(VideoMetrics metrics, Config config) {
+        Object hint = config.getInterpolationHint();
+        String interpolation = hint != null ? hint.toString() : "default interpolation";
+        Thread report = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                System.out.printf("Capture-to-paint latency (%s, window %s): %s%n",
+                        interpolation, config.getWindow(),
+                        metrics.getCaptureToPaintTime());
+            }
+        }, "LatencyReport");
+        report.setDaemon(true);
+        report.start();
+    }
+
     private static void listAllV4L2Uris() throws IOException {
 
         List<String> uris = new ArrayList<>();
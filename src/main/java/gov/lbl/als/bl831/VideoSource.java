@@ -1,8 +1,15 @@
 package gov.lbl.als.bl831;
 
+import java.awt.Dimension;
 import java.awt.Image;
 import java.awt.event.ActionListener;
+import java.awt.geom.Rectangle2D;
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import gov.lbl.als.bl831.metrics.VideoMetrics;
+import gov.lbl.als.bl831.video.FrameBus;
 
 /**
  * Abstraction of a video source.
@@ -10,12 +17,107 @@ import java.io.IOException;
 public interface VideoSource {
 
     /**
+     * Takes the most recent image. Sources may recycle image buffers, so the
+     * returned image is only guaranteed to stay untouched until the next call.
+     * Should only be called from a single consumer thread (normally the event
+     * dispatch thread).
+     *
      * @return the most recent image.
      */
     Image getImage();
 
+    /**
+     * Tells the source the size of the area its video is shown in, so it can
+     * scale frames natively instead of leaving that to the widget. Sources
+     * that cannot scale ignore this.
+     *
+     * @param size
+     *        the display area in pixels, or null for the native frame size.
+     */
+    default void setDisplaySize(Dimension size) {
+    }
+
+    /**
+     * Asks the source to crop its frames to a region of interest, for digital
+     * zoom. Sources that cannot crop ignore this and keep delivering whole
+     * frames, which the caller then has to crop itself.
+     *
+     * @param viewport
+     *        the region to show, in coordinates normalized to [0,1] of the
+     *        full frame, or null for the whole frame.
+     * @return <code>true</code> if the source will deliver cropped frames.
+     */
+    default boolean setViewport(Rectangle2D viewport) {
+        return false;
+    }
+
+    /**
+     * Limits how many frames per second the source delivers, to save CPU
+     * while nobody is looking. Sources that cannot throttle ignore this.
+     *
+     * @param fps
+     *        the most frames per second to deliver, 0 for none, or
+     *        {@link Double#POSITIVE_INFINITY} for no limit.
+     */
+    default void setFrameRateLimit(double fps) {
+    }
+
+    /**
+     * Makes the source deliver its next frame even if it is a repeat of the
+     * last one, e.g. when it is about to be shown in place of another
+     * source. Sources that do not skip repeated frames ignore this.
+     */
+    default void refresh() {
+    }
+
+    /**
+     * Writes the last part of the source's background recording, if it keeps
+     * one, to a new file.
+     *
+     * @param seconds
+     *        how much video to export, counted back from now.
+     * @return the exported file once it is written, or a future failed with
+     *         an {@link IOException} if the source is not recording.
+     */
+    default CompletableFuture<File> exportRecording(int seconds) {
+        return CompletableFuture.failedFuture(new IOException("Video is not being recorded"));
+    }
+
+    /**
+     * Saves the next frame of the source to a JPEG file, without making the
+     * caller or the display wait for it.
+     *
+     * @param file
+     *        the file to write.
+     * @return the file once it is written, or a future failed with an
+     *         {@link IOException} if the source cannot take snapshots.
+     */
+    default CompletableFuture<File> snapshot(File file) {
+        return CompletableFuture.failedFuture(new IOException("Snapshots are not supported"));
+    }
+
+    /**
+     * @return the metrics the source records its pipeline timings into, or
+     *         null if it does not keep any.
+     */
+    default VideoMetrics getMetrics() {
+        return null;
+    }
+
+    /**
+     * @return the bus the source publishes its decoded frames to, for
+     *         consumers that need the frames themselves rather than the
+     *         display image, or null if it has none.
+     */
+    default FrameBus getFrameBus() {
+        return null;
+    }
+
     /**
      * Adds an listener that will be called whenever a new image is available.
+     * The listener is the single consumer that calls {@link #getImage()};
+     * sources may refuse a second one, and consumers that need every frame
+     * use {@link #getFrameBus()} instead.
      * 
      * @param listener
      *        the listener that needs to be added.
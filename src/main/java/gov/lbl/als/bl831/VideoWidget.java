@@ -14,22 +14,57 @@ import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 import javax.swing.JPanel;
 import javax.swing.Timer;
 
+import gov.lbl.als.bl831.metrics.VideoMetrics;
+import gov.lbl.als.bl831.metrics.VideoMetrics.Stage;
+import gov.lbl.als.bl831.video.TimestampPattern;
+
 /**
  *
  */
 public class VideoWidget extends JPanel {
 
+    /**
+     * Bound property fired with the widget size once a resize has settled, so
+     * the video source can scale frames to it.
+     */
+    public static final String        DISPLAY_SIZE_PROPERTY = "displaySize";
+
+    /**
+     * Bound property fired with the digital zoom region whenever it changes,
+     * as a rectangle normalized to [0,1] of the full frame.
+     */
+    public static final String        VIEWPORT_PROPERTY = "viewport";
+
     private static final int          kRectangle       = 1;
     private static final int          kEllipse         = 2;
+    private static final double       kMaxZoom         = 8.0;
+    private static final double       kWheelZoomStep   = 1.25;
+
+    /**
+     * Change detection compares frames in tiles of this many image pixels
+     * square, sampling every {@link #kSampleStep}th pixel of every
+     * {@link #kSampleStep}th row. Changes between the samples can be missed,
+     * so every {@link #kFullRepaintInterval}th frame is drawn in full.
+     */
+    private static final int          kTileSize        = 32;
+    private static final int          kSampleStep      = 4;
+    private static final int          kFullRepaintInterval = 25;
     private static final long         serialVersionUID = 1L;
     private Image                     mCurrentImage;
     private final ClickSink           mClickSink;
@@ -46,8 +81,23 @@ public class VideoWidget extends JPanel {
     private final Stroke              mStroke3         = new BasicStroke(3);
     private final Stroke              mStroke5         = new BasicStroke(5);
     private BufferedImage             mScaledImage;
+    private BufferedImage             mScaledBuffer;
+    private Dimension                 mDisplaySize;
     private volatile boolean          mImageDirty;
+    private VideoMetrics              mMetrics;
     private boolean                   mResizing;
+    private Rectangle2D.Double        mViewport        = new Rectangle2D.Double(0, 0, 1, 1);
+    private boolean                   mSourceCropping;
+    private Point                     mDragStart;
+    private Rectangle2D.Double        mDragViewport;
+    private Rectangle                 mSrcRect;
+    private int[]                     mTileHashes;
+    private int[]                     mPrevTileHashes;
+    private int                       mTileImageWidth;
+    private int                       mTileImageHeight;
+    private int                       mFramesSinceFullRepaint;
+    private boolean                   mFullRepaint     = true;
+    private Rectangle                 mChangedRect     = new Rectangle();
 
     public VideoWidget(ClickSink clickSink, Config config) {
         super();
@@ -63,6 +113,10 @@ public class VideoWidget extends JPanel {
         Timer resizeTimer = new Timer(150, e -> {
             mResizing = false;
             mImageDirty = true;
+            mFullRepaint = true;
+            Dimension oldSize = mDisplaySize;
+            mDisplaySize = getSize();
+            firePropertyChange(DISPLAY_SIZE_PROPERTY, oldSize, mDisplaySize);
             repaint();
         });
         resizeTimer.setRepeats(false);
@@ -79,8 +133,14 @@ public class VideoWidget extends JPanel {
             @Override
             public void mouseClicked(MouseEvent e) {
                 if (mVideoRect != null && mVideoRect.contains(e.getPoint())) {
-                    double x = (e.getX() - mVideoRect.x) / (double) mVideoRect.width;
-                    double y = (e.getY() - mVideoRect.y) / (double) mVideoRect.height;
+                    //
+                    // Map the click back into the full frame, in case we are
+                    // zoomed in.
+                    //
+                    double x = mViewport.x + mViewport.width
+                               * (e.getX() - mVideoRect.x) / (double) mVideoRect.width;
+                    double y = mViewport.y + mViewport.height
+                               * (e.getY() - mVideoRect.y) / (double) mVideoRect.height;
                     ButtonConfig buttonConfig = mConfig.getButtonOverrides()
                             .get(VirtualButton.Center);
                     if (buttonConfig != null && buttonConfig.getCommand() != null) {
@@ -95,6 +155,99 @@ public class VideoWidget extends JPanel {
                 }
             }
         });
+
+        if (mConfig.isDigitalZoom()) {
+            MouseAdapter zoomGestures = new MouseAdapter() {
+
+                @Override
+                public void mouseWheelMoved(MouseWheelEvent e) {
+                    if (mVideoRect != null && mVideoRect.contains(e.getPoint())) {
+                        zoomAt(e.getPoint(), Math.pow(kWheelZoomStep, -e.getPreciseWheelRotation()));
+                    }
+                }
+
+                @Override
+                public void mousePressed(MouseEvent e) {
+                    mDragStart = e.getPoint();
+                    mDragViewport = (Rectangle2D.Double) mViewport.clone();
+                }
+
+                @Override
+                public void mouseDragged(MouseEvent e) {
+                    if (mDragStart != null && mVideoRect != null && mViewport.width < 1.0) {
+                        double dx = (e.getX() - mDragStart.x) / (double) mVideoRect.width;
+                        double dy = (e.getY() - mDragStart.y) / (double) mVideoRect.height;
+                        setViewport(mDragViewport.x - dx * mDragViewport.width,
+                                mDragViewport.y - dy * mDragViewport.height,
+                                mDragViewport.width);
+                    }
+                }
+
+                @Override
+                public void mouseReleased(MouseEvent e) {
+                    mDragStart = null;
+                }
+            };
+            addMouseListener(zoomGestures);
+            addMouseMotionListener(zoomGestures);
+            addMouseWheelListener(zoomGestures);
+        }
+    }
+
+    /**
+     * Zooms in or out, keeping the part of the frame under the given point
+     * where it is.
+     *
+     * @param point
+     *        the zoom center, in widget coordinates.
+     * @param factor
+     *        how much to magnify relative to the current zoom.
+     */
+    private void zoomAt(Point point, double factor) {
+        double zoom = Math.max(1.0, Math.min(kMaxZoom, factor / mViewport.width));
+        double size = 1.0 / zoom;
+        double fx = (point.x - mVideoRect.x) / (double) mVideoRect.width;
+        double fy = (point.y - mVideoRect.y) / (double) mVideoRect.height;
+        double cx = mViewport.x + fx * mViewport.width;
+        double cy = mViewport.y + fy * mViewport.height;
+        setViewport(cx - fx * size, cy - fy * size, size);
+    }
+
+    /**
+     * Moves the digital zoom region, keeping it inside the frame.
+     *
+     * @param x
+     *        left edge, normalized to the full frame.
+     * @param y
+     *        top edge, normalized to the full frame.
+     * @param size
+     *        width and height, normalized to the full frame.
+     */
+    private void setViewport(double x, double y, double size) {
+        Rectangle2D.Double viewport = new Rectangle2D.Double(
+                Math.max(0.0, Math.min(1.0 - size, x)),
+                Math.max(0.0, Math.min(1.0 - size, y)), size, size);
+        if (viewport.equals(mViewport)) {
+            return;
+        }
+        Rectangle2D.Double oldViewport = mViewport;
+        mViewport = viewport;
+        if (!mSourceCropping) {
+            mImageDirty = true;
+        }
+        mFullRepaint = true;
+        firePropertyChange(VIEWPORT_PROPERTY, oldViewport, viewport);
+        repaint();
+    }
+
+    /**
+     * @param sourceCropping
+     *        <code>true</code> if the video source crops its frames to the
+     *        {@link #VIEWPORT_PROPERTY viewport}; otherwise the widget crops
+     *        whole frames itself.
+     */
+    public void setSourceCropping(boolean sourceCropping) {
+        mSourceCropping = sourceCropping;
     }
 
     /**
@@ -119,35 +272,94 @@ public class VideoWidget extends JPanel {
                 System.out.printf("Incomplete dimensions: %d x %d\n", imageWidth, imageHeight);
                 return;
             }
-            Dimension destDim = computeDestinationDimension(mCurrentImage, imageWidth,
-                    imageHeight);
+            //
+            // The part of the image to show: all of it, unless we are zoomed
+            // in and have to crop it ourselves.
+            //
+            Rectangle srcRect = new Rectangle(0, 0, imageWidth, imageHeight);
+            if (!mSourceCropping && mViewport.width < 1.0) {
+                srcRect = new Rectangle((int) (mViewport.x * imageWidth),
+                        (int) (mViewport.y * imageHeight),
+                        Math.max((int) Math.round(mViewport.width * imageWidth), 1),
+                        Math.max((int) Math.round(mViewport.height * imageHeight), 1));
+            }
+            Dimension destDim = computeDestinationDimension(mCurrentImage, srcRect.width,
+                    srcRect.height);
+            boolean sourceScaled = mCurrentImage instanceof BufferedImage
+                    && srcRect.width == imageWidth && srcRect.height == imageHeight
+                    && Math.abs(destDim.width - imageWidth) <= 1
+                    && Math.abs(destDim.height - imageHeight) <= 1;
+            if (sourceScaled) {
+                //
+                // The source already scaled the frame to our size. Ignore
+                // off-by-one rounding differences and draw it as is.
+                //
+                destDim = new Dimension(imageWidth, imageHeight);
+            }
             Dimension size = getSize();
             int xOffset = (size.width - destDim.width) / 2;
             int yOffset = (size.height - destDim.height) / 2;
             Graphics2D g2d = (Graphics2D) g;
 
+            boolean newFrame = mImageDirty;
             if (mImageDirty) {
                 mImageDirty = false;
-                if (mScaledImage == null
-                        || mScaledImage.getWidth() != destDim.width
-                        || mScaledImage.getHeight() != destDim.height) {
-                    mScaledImage = new BufferedImage(
-                            destDim.width, destDim.height, BufferedImage.TYPE_INT_RGB);
+                if (mMetrics != null) {
+                    mMetrics.framePainted();
                 }
-                Graphics2D sg = mScaledImage.createGraphics();
-                if (!mInterpHints.isEmpty()) {
-                    sg.addRenderingHints(mInterpHints);
+                if (sourceScaled) {
+                    mScaledImage = (BufferedImage) mCurrentImage;
+                } else {
+                    long start = System.nanoTime();
+                    if (mScaledBuffer == null
+                            || mScaledBuffer.getWidth() != destDim.width
+                            || mScaledBuffer.getHeight() != destDim.height) {
+                        mScaledBuffer = new BufferedImage(
+                                destDim.width, destDim.height, BufferedImage.TYPE_INT_RGB);
+                        mFullRepaint = true;
+                    }
+                    Graphics2D sg = mScaledBuffer.createGraphics();
+                    if (!mInterpHints.isEmpty()) {
+                        sg.addRenderingHints(mInterpHints);
+                    }
+                    if (!mFullRepaint) {
+                        //
+                        // Only rescale the tiles that changed. Clipping
+                        // rather than drawing each tile on its own gives
+                        // exactly the pixels a full rescale would.
+                        //
+                        sg.clip(mapImageRect(mChangedRect, srcRect, destDim));
+                    }
+                    sg.drawImage(mCurrentImage, 0, 0, destDim.width, destDim.height,
+                            srcRect.x, srcRect.y, srcRect.x + srcRect.width,
+                            srcRect.y + srcRect.height, null);
+                    sg.dispose();
+                    mScaledImage = mScaledBuffer;
+                    if (mMetrics != null) {
+                        mMetrics.record(Stage.SCALE, System.nanoTime() - start);
+                    }
                 }
-                sg.drawImage(mCurrentImage, 0, 0, destDim.width, destDim.height,
-                        0, 0, imageWidth, imageHeight, null);
-                sg.dispose();
+                mFullRepaint = false;
+                mChangedRect = new Rectangle();
             }
 
             if (mScaledImage != null) {
+                long start = System.nanoTime();
                 g2d.drawImage(mScaledImage, xOffset, yOffset,
                         destDim.width, destDim.height, null);
+                if (mMetrics != null) {
+                    long now = System.nanoTime();
+                    mMetrics.record(Stage.BLIT, now - start);
+                    if (newFrame && mConfig.isMeasureLatency()) {
+                        long latency = TimestampPattern.readLatency(mScaledImage, now);
+                        if (latency >= 0) {
+                            mMetrics.record(Stage.CAPTURE_TO_PAINT, latency);
+                        }
+                    }
+                }
             }
             mVideoRect = new Rectangle(new Point(xOffset, yOffset), destDim);
+            mSrcRect = srcRect;
 
             if (mConfig.getBorderColor() != null) {
                 g2d.setPaint(mConfig.getBorderColor());
@@ -163,11 +375,16 @@ public class VideoWidget extends JPanel {
 
                 g2d.setPaint(Color.black);
                 g2d.setStroke(mStroke5);
+                g2d.clipRect(mVideoRect.x, mVideoRect.y, mVideoRect.width, mVideoRect.height);
 
-                double w = mVideoRect.getWidth() * mBeamW;
-                double h = mVideoRect.getHeight() * mBeamH;
-                double x = mVideoRect.getWidth() * mBeamX;
-                double y = mVideoRect.getHeight() * mBeamY;
+                //
+                // The beam is given in full-frame coordinates; map it into
+                // the zoomed view.
+                //
+                double w = mVideoRect.getWidth() * mBeamW / mViewport.width;
+                double h = mVideoRect.getHeight() * mBeamH / mViewport.height;
+                double x = mVideoRect.getWidth() * (mBeamX - mViewport.x) / mViewport.width;
+                double y = mVideoRect.getHeight() * (mBeamY - mViewport.y) / mViewport.height;
 
                 if (mShape == kEllipse) {
                     Ellipse2D.Double ellipse = new Ellipse2D.Double(xOffset + x - w / 2,
@@ -225,19 +442,170 @@ public class VideoWidget extends JPanel {
     }
 
     /**
-     * Updates the image to be displayed.
+     * Updates the image to be displayed. The previous image is not flushed,
+     * since video sources recycle their image buffers.
+     * <p>
+     * Only the part of the widget covering tiles that changed since the last
+     * frame is repainted, and nothing at all if none did.
      * 
      * @param newImage
      *        the new image.
      */
     public void setImage(Image newImage) {
-        Image oldImage = mCurrentImage;
         mCurrentImage = newImage;
         mImageDirty = true;
-        if (oldImage != null && oldImage != newImage) {
-            oldImage.flush();
+        Rectangle changed = findChangedArea(newImage);
+        if (changed == null) {
+            mFullRepaint = true;
+            repaint();
+        } else if (!changed.isEmpty()) {
+            mChangedRect = mChangedRect.isEmpty() ? changed : mChangedRect.union(changed);
+            Rectangle area = mapImageRect(changed, mSrcRect, mVideoRect.getSize());
+            area.translate(mVideoRect.x, mVideoRect.y);
+            repaint(area.intersection(mVideoRect));
         }
-        repaint();
+    }
+
+    /**
+     * Compares a new frame with the previous one, tile by tile, on a sparse
+     * grid of sampled pixels.
+     *
+     * @param image
+     *        the new frame.
+     * @return the bounding box of the changed tiles in image pixels, which is
+     *         empty if none changed; or null if the whole frame has to be
+     *         drawn, e.g. because the frame size or zoom changed.
+     */
+    private Rectangle findChangedArea(Image image) {
+        if (!(image instanceof BufferedImage)) {
+            mTileHashes = null;
+            return null;
+        }
+        WritableRaster raster = ((BufferedImage) image).getRaster();
+        int[] pixels = null;
+        byte[] grayPixels = null;
+        int offset;
+        int stride;
+        if (((BufferedImage) image).getType() == BufferedImage.TYPE_INT_RGB
+                && raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && raster.getParent() == null) {
+            DataBufferInt dataBuffer = (DataBufferInt) raster.getDataBuffer();
+            pixels = dataBuffer.getData();
+            offset = dataBuffer.getOffset();
+            stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+        } else if (((BufferedImage) image).getType() == BufferedImage.TYPE_BYTE_GRAY
+                && raster.getDataBuffer() instanceof DataBufferByte
+                && raster.getSampleModel() instanceof ComponentSampleModel
+                && raster.getParent() == null) {
+            DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+            grayPixels = dataBuffer.getData();
+            offset = dataBuffer.getOffset();
+            stride = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+        } else {
+            mTileHashes = null;
+            return null;
+        }
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int cols = (width + kTileSize - 1) / kTileSize;
+        int rows = (height + kTileSize - 1) / kTileSize;
+
+        boolean comparable = mTileHashes != null && !mFullRepaint && mVideoRect != null
+                && mSrcRect != null && width == mTileImageWidth && height == mTileImageHeight
+                && ++mFramesSinceFullRepaint < kFullRepaintInterval;
+
+        int[] hashes = mPrevTileHashes;
+        if (hashes == null || hashes.length != cols * rows) {
+            hashes = new int[cols * rows];
+        } else {
+            Arrays.fill(hashes, 0);
+        }
+        for (int y = kSampleStep / 2; y < height; y += kSampleStep) {
+            int rowStart = offset + y * stride;
+            int tileRow = (y / kTileSize) * cols;
+            for (int x = kSampleStep / 2; x < width; x += kSampleStep) {
+                int tile = tileRow + x / kTileSize;
+                int pixel = pixels != null ? pixels[rowStart + x] : grayPixels[rowStart + x];
+                hashes[tile] = hashes[tile] * 31 + pixel;
+            }
+        }
+
+        int minCol = cols;
+        int minRow = rows;
+        int maxCol = -1;
+        int maxRow = -1;
+        if (comparable) {
+            for (int row = 0; row < rows; row++) {
+                for (int col = 0; col < cols; col++) {
+                    int tile = row * cols + col;
+                    if (hashes[tile] != mTileHashes[tile]) {
+                        minCol = Math.min(minCol, col);
+                        maxCol = Math.max(maxCol, col);
+                        minRow = Math.min(minRow, row);
+                        maxRow = Math.max(maxRow, row);
+                    }
+                }
+            }
+        }
+        mPrevTileHashes = mTileHashes;
+        mTileHashes = hashes;
+        mTileImageWidth = width;
+        mTileImageHeight = height;
+
+        if (!comparable) {
+            mFramesSinceFullRepaint = 0;
+            return null;
+        }
+        if (maxCol < 0) {
+            return new Rectangle();
+        }
+        return new Rectangle(minCol * kTileSize, minRow * kTileSize,
+                (maxCol - minCol + 1) * kTileSize, (maxRow - minRow + 1) * kTileSize);
+    }
+
+    /**
+     * Maps a rectangle of image pixels to where it is drawn in the scaled
+     * image, widened by a couple of pixels for interpolation to pick up the
+     * change.
+     *
+     * @param imageRect
+     *        the area in image pixels.
+     * @param srcRect
+     *        the part of the image that is shown.
+     * @param destDim
+     *        the size it is shown at.
+     * @return the area in scaled image pixels.
+     */
+    private static Rectangle mapImageRect(Rectangle imageRect, Rectangle srcRect,
+                                          Dimension destDim) {
+        double sx = destDim.width / (double) srcRect.width;
+        double sy = destDim.height / (double) srcRect.height;
+        int x1 = (int) Math.floor((imageRect.x - srcRect.x) * sx) - 2;
+        int y1 = (int) Math.floor((imageRect.y - srcRect.y) * sy) - 2;
+        int x2 = (int) Math.ceil((imageRect.x + imageRect.width - srcRect.x) * sx) + 2;
+        int y2 = (int) Math.ceil((imageRect.y + imageRect.height - srcRect.y) * sy) + 2;
+        return new Rectangle(x1, y1, x2 - x1, y2 - y1);
+    }
+
+    /**
+     * @param metrics
+     *        receives paint counts and scale and blit timings, or null to stop
+     *        recording them.
+     */
+    public void setMetrics(VideoMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * @return the size of the image currently displayed, or null if there is
+     *         none yet. Must be called on the event dispatch thread.
+     */
+    public Dimension getImageSize() {
+        if (mCurrentImage == null || mCurrentImage.getWidth(null) <= 0) {
+            return null;
+        }
+        return new Dimension(mCurrentImage.getWidth(null), mCurrentImage.getHeight(null));
     }
 
     /**
@@ -0,0 +1,118 @@
+package gov.lbl.als.bl831.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds.
+ * <p>
+ * Each power of two is split into {@link #SUB_BUCKETS} linear buckets, so a
+ * recorded value lands in a bucket no more than 25% wide and percentiles are
+ * accurate to about 12%. Recording is a few atomic increments and never
+ * allocates, so it is cheap enough to call for every frame on every thread.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (63 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param nanos
+     *        the duration to record. Negative values are ignored.
+     */
+    void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        mBuckets.incrementAndGet(bucketOf(nanos));
+        mCount.incrementAndGet();
+        mSum.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos)) {
+            // Retry
+        }
+    }
+
+    /**
+     * Clears all recorded values. Values recorded concurrently may be lost.
+     */
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    /**
+     * @return the statistics recorded so far, in microseconds.
+     */
+    StageStatistics snapshot() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mBuckets.get(i);
+            total += counts[i];
+        }
+        long count = mCount.get();
+        long max = mMax.get();
+        double mean = count > 0 ? mSum.get() / (double) count / 1000.0 : 0.0;
+        return new StageStatistics(count, mean,
+                percentile(counts, total, max, 0.50) / 1000.0,
+                percentile(counts, total, max, 0.90) / 1000.0,
+                percentile(counts, total, max, 0.99) / 1000.0,
+                max / 1000.0);
+    }
+
+    /**
+     * Estimates a percentile as the middle of the bucket it falls into,
+     * capped at the largest recorded value.
+     */
+    private static double percentile(long[] counts, long total, long max, double fraction) {
+        if (total == 0) {
+            return 0.0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min((lowerBound(i) + upperBound(i)) / 2.0, max);
+            }
+        }
+        return max;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return lowerBound(bucket) + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,77 @@
+package gov.lbl.als.bl831.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Timing statistics of one video pipeline stage, in microseconds. Shown as a
+ * composite attribute in JConsole.
+ */
+public class StageStatistics {
+
+    private final long   mCount;
+    private final double mMeanMicros;
+    private final double mP50Micros;
+    private final double mP90Micros;
+    private final double mP99Micros;
+    private final double mMaxMicros;
+
+    @ConstructorProperties({ "count", "meanMicros", "p50Micros", "p90Micros",
+            "p99Micros", "maxMicros" })
+    public StageStatistics(long count, double meanMicros, double p50Micros,
+                           double p90Micros, double p99Micros, double maxMicros) {
+        mCount = count;
+        mMeanMicros = meanMicros;
+        mP50Micros = p50Micros;
+        mP90Micros = p90Micros;
+        mP99Micros = p99Micros;
+        mMaxMicros = maxMicros;
+    }
+
+    /**
+     * @return the number of timed executions.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the mean duration.
+     */
+    public double getMeanMicros() {
+        return mMeanMicros;
+    }
+
+    /**
+     * @return the median duration.
+     */
+    public double getP50Micros() {
+        return mP50Micros;
+    }
+
+    /**
+     * @return the 90th percentile duration.
+     */
+    public double getP90Micros() {
+        return mP90Micros;
+    }
+
+    /**
+     * @return the 99th percentile duration.
+     */
+    public double getP99Micros() {
+        return mP99Micros;
+    }
+
+    /**
+     * @return the longest duration.
+     */
+    public double getMaxMicros() {
+        return mMaxMicros;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.0fus p50=%.0fus p90=%.0fus p99=%.0fus max=%.0fus",
+                mCount, mMeanMicros, mP50Micros, mP90Micros, mP99Micros, mMaxMicros);
+    }
+}
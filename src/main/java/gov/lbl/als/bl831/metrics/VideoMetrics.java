@@ -0,0 +1,276 @@
+package gov.lbl.als.bl831.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and per-stage latency histograms for the video path, from reading
+ * a packet off the camera to drawing the frame in the video widget.
+ * <p>
+ * The capture and decode threads and the event dispatch thread all
+ * record into the same instance. Recording never blocks or allocates. Once
+ * {@link #register()} has been called the figures can be read over JMX, e.g.
+ * with JConsole, under the object name {@value #OBJECT_NAME}. With several
+ * cameras each has its own instance, registered with {@link #register(String)}
+ * under that name with the camera name added.
+ */
+public class VideoMetrics implements VideoMetricsMXBean {
+
+    public static final String OBJECT_NAME = "gov.lbl.als.bl831:type=VideoMetrics";
+
+    /**
+     * The timed stages of the video path, in the order a frame passes them,
+     * followed by the end-to-end latency measured with time-stamped frames.
+     */
+    public enum Stage {
+        GRAB, DECODE, CONVERT, EDT_WAIT, SCALE, BLIT, CAPTURE_TO_PAINT
+    }
+
+    private final Map<Stage, LatencyHistogram> mHistograms = new EnumMap<>(Stage.class);
+
+    private final RateMeter mCaptured = new RateMeter();
+    private final LongAdder mDecoded = new LongAdder();
+    private final LongAdder mPublished = new LongAdder();
+    private final RateMeter mPainted = new RateMeter();
+    private final LongAdder mPacketsDropped = new LongAdder();
+    private final LongAdder mFramesDropped = new LongAdder();
+    private final LongAdder mFramesSuperseded = new LongAdder();
+    private final LongAdder mFramesSkipped = new LongAdder();
+
+    public VideoMetrics() {
+        for (Stage stage : Stage.values()) {
+            mHistograms.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Registers this instance with the platform MBean server.
+     *
+     * @throws JMException
+     *         if registration fails, e.g. because another instance is already
+     *         registered.
+     */
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    /**
+     * Registers this instance with the platform MBean server as the metrics
+     * of one of several cameras, e.g.
+     * <code>gov.lbl.als.bl831:type=VideoMetrics,name=main</code>.
+     *
+     * @param camera
+     *        the camera name. It is quoted if it contains characters that
+     *        object names do not allow unquoted.
+     * @throws JMException
+     *         if registration fails, e.g. because a camera of the same name is
+     *         already registered.
+     */
+    public void register(String camera) throws JMException {
+        String name = camera.matches("[\\w.-]+") ? camera : ObjectName.quote(camera);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, new ObjectName(OBJECT_NAME + ",name=" + name));
+    }
+
+    /**
+     * @param stage
+     *        the stage that was timed.
+     * @param nanos
+     *        how long it took.
+     */
+    public void record(Stage stage, long nanos) {
+        mHistograms.get(stage).record(nanos);
+    }
+
+    public void frameCaptured() {
+        mCaptured.mark();
+    }
+
+    public void frameDecoded() {
+        mDecoded.increment();
+    }
+
+    public void framePublished() {
+        mPublished.increment();
+    }
+
+    public void framePainted() {
+        mPainted.mark();
+    }
+
+    public void packetDropped() {
+        mPacketsDropped.increment();
+    }
+
+    public void frameDropped() {
+        mFramesDropped.increment();
+    }
+
+    public void frameSuperseded() {
+        mFramesSuperseded.increment();
+    }
+
+    public void frameSkipped() {
+        mFramesSkipped.increment();
+    }
+
+    @Override
+    public long getFramesCaptured() {
+        return mCaptured.getCount();
+    }
+
+    @Override
+    public long getFramesDecoded() {
+        return mDecoded.sum();
+    }
+
+    @Override
+    public long getFramesPublished() {
+        return mPublished.sum();
+    }
+
+    @Override
+    public long getFramesPainted() {
+        return mPainted.getCount();
+    }
+
+    @Override
+    public long getPacketsDropped() {
+        return mPacketsDropped.sum();
+    }
+
+    @Override
+    public long getFramesDropped() {
+        return mFramesDropped.sum();
+    }
+
+    @Override
+    public long getFramesSuperseded() {
+        return mFramesSuperseded.sum();
+    }
+
+    @Override
+    public long getFramesSkipped() {
+        return mFramesSkipped.sum();
+    }
+
+    @Override
+    public double getCaptureFps() {
+        return mCaptured.getRate();
+    }
+
+    @Override
+    public double getPaintFps() {
+        return mPainted.getRate();
+    }
+
+    @Override
+    public StageStatistics getGrabTime() {
+        return mHistograms.get(Stage.GRAB).snapshot();
+    }
+
+    @Override
+    public StageStatistics getDecodeTime() {
+        return mHistograms.get(Stage.DECODE).snapshot();
+    }
+
+    @Override
+    public StageStatistics getConvertTime() {
+        return mHistograms.get(Stage.CONVERT).snapshot();
+    }
+
+    @Override
+    public StageStatistics getEdtWaitTime() {
+        return mHistograms.get(Stage.EDT_WAIT).snapshot();
+    }
+
+    @Override
+    public StageStatistics getScaleTime() {
+        return mHistograms.get(Stage.SCALE).snapshot();
+    }
+
+    @Override
+    public StageStatistics getBlitTime() {
+        return mHistograms.get(Stage.BLIT).snapshot();
+    }
+
+    @Override
+    public StageStatistics getCaptureToPaintTime() {
+        return mHistograms.get(Stage.CAPTURE_TO_PAINT).snapshot();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms.values()) {
+            histogram.reset();
+        }
+        mCaptured.reset();
+        mDecoded.reset();
+        mPublished.reset();
+        mPainted.reset();
+        mPacketsDropped.reset();
+        mFramesDropped.reset();
+        mFramesSuperseded.reset();
+        mFramesSkipped.reset();
+    }
+
+    /**
+     * Event counter that also tracks its rate over windows of about one
+     * second. The window is rolled by whichever thread marks the first event
+     * after it expires, so reading the rate has no side effects.
+     */
+    private static class RateMeter {
+
+        private static final long WINDOW_NANOS = 1000000000L;
+
+        private final LongAdder mCount = new LongAdder();
+        private volatile long mWindowStart = System.nanoTime();
+        private long mWindowCount = 0;
+        private volatile double mRate = 0.0;
+
+        void mark() {
+            mCount.increment();
+            long now = System.nanoTime();
+            if (now - mWindowStart >= WINDOW_NANOS) {
+                synchronized (this) {
+                    long elapsed = now - mWindowStart;
+                    if (elapsed >= WINDOW_NANOS) {
+                        long count = mCount.sum();
+                        mRate = (count - mWindowCount) * 1e9 / elapsed;
+                        mWindowCount = count;
+                        mWindowStart = now;
+                    }
+                }
+            }
+        }
+
+        long getCount() {
+            return mCount.sum();
+        }
+
+        /**
+         * @return events per second over the last full window, or 0 if no
+         *         event was marked for two windows.
+         */
+        double getRate() {
+            if (System.nanoTime() - mWindowStart > 2 * WINDOW_NANOS) {
+                return 0.0;
+            }
+            return mRate;
+        }
+
+        synchronized void reset() {
+            mCount.reset();
+            mWindowCount = 0;
+            mWindowStart = System.nanoTime();
+            mRate = 0.0;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package gov.lbl.als.bl831.metrics;
+
+/**
+ * Management interface of {@link VideoMetrics}, for JConsole or any other JMX
+ * client attached to a running kiosk.
+ */
+public interface VideoMetricsMXBean {
+
+    /**
+     * @return video packets read from the camera.
+     */
+    long getFramesCaptured();
+
+    /**
+     * @return frames that came out of the decoder.
+     */
+    long getFramesDecoded();
+
+    /**
+     * @return frames converted and handed to the display.
+     */
+    long getFramesPublished();
+
+    /**
+     * @return distinct frames drawn by the video widget.
+     */
+    long getFramesPainted();
+
+    /**
+     * @return packets dropped before decoding because the decoder fell behind.
+     */
+    long getPacketsDropped();
+
+    /**
+     * @return decoded frames of a file dropped because playback fell behind
+     *         their time.
+     */
+    long getFramesDropped();
+
+    /**
+     * @return decoded frames replaced by a newer one before the display took
+     *         them, or whose notification was merged into one still queued
+     *         on the event dispatch thread.
+     */
+    long getFramesSuperseded();
+
+    /**
+     * @return packets skipped without decoding because they were identical to
+     *         the previous packet.
+     */
+    long getFramesSkipped();
+
+    /**
+     * @return frames captured per second over the last second.
+     */
+    double getCaptureFps();
+
+    /**
+     * @return frames painted per second over the last second.
+     */
+    double getPaintFps();
+
+    /**
+     * @return time spent waiting for and reading each packet.
+     */
+    StageStatistics getGrabTime();
+
+    /**
+     * @return time spent decoding each packet.
+     */
+    StageStatistics getDecodeTime();
+
+    /**
+     * @return time spent in the swscale color conversion of each frame.
+     */
+    StageStatistics getConvertTime();
+
+    /**
+     * @return time from publishing a frame until the event dispatch thread
+     *         picks it up.
+     */
+    StageStatistics getEdtWaitTime();
+
+    /**
+     * @return time the widget spends rescaling frames with Java2D, for frames
+     *         the source did not already scale to the display size.
+     */
+    StageStatistics getScaleTime();
+
+    /**
+     * @return time spent drawing each frame to the screen.
+     */
+    StageStatistics getBlitTime();
+
+    /**
+     * @return time from capturing a frame until it was painted, read back
+     *         from the timestamp pattern in the painted image. Only recorded
+     *         while measuring latency.
+     */
+    StageStatistics getCaptureToPaintTime();
+
+    /**
+     * Clears all counters and timings.
+     */
+    void reset();
+}
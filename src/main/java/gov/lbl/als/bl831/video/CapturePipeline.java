@@ -0,0 +1,427 @@
+package gov.lbl.als.bl831.video;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+
+import gov.lbl.als.bl831.metrics.VideoMetrics;
+import gov.lbl.als.bl831.metrics.VideoMetrics.Stage;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+/**
+ * Runs decoding on its own thread, so the capture thread only has to read
+ * packets and is never held up by a slow frame.
+ * <p>
+ * Packets go from the capture thread to the "Video Decode" thread through a
+ * small bounded queue. Decoded frames are left in a {@link PendingFrame},
+ * still in the decoder's pixel format, and only converted when the display
+ * takes them; a frame the display never gets to is simply replaced by the
+ * next, so the widget always gets the newest picture instead of a backlog.
+ * The packet queue drops its oldest packet too for intra-only codecs such as
+ * MJPEG, where any packet decodes on its own; for inter-frame codecs it
+ * blocks the capture thread instead, since dropping a reference frame would
+ * corrupt the frames after it.
+ * <p>
+ * A {@link FrameRateLimit} thins out the frames that are shown. For
+ * intra-only codecs the surplus packets are dropped before decoding; for
+ * others every packet is decoded and the surplus frames are not shown.
+ * Either way, while anybody is subscribed to the {@link FrameBus}, such as a
+ * {@link Snapshotter} with a snapshot waiting, every frame is decoded and
+ * published to it from the decode thread, stamped with the time its packet
+ * was read.
+ * <p>
+ * Decoders that can reduce the resolution while decoding, such as MJPEG,
+ * do so as far as the display size and crop allow (see
+ * {@link FrameConverter#getLowres}), which saves most of the decoding of a
+ * large picture shown in a small window. The factor is checked before each
+ * packet and the decoder reopened when it changes, e.g. after the window was
+ * resized; while anybody is subscribed to the bus, frames are decoded at
+ * full resolution, and only full-size frames are published to it.
+ * <p>
+ * In low-latency mode, packets that queued up while decoding fell behind
+ * are skipped: the decode thread goes straight to the newest queued packet
+ * that decodes on its own, which for MJPEG is simply the newest packet and
+ * for other codecs the newest keyframe. A stall then delays the picture by
+ * no more than the stall itself, instead of the queue being shown frame by
+ * frame at the camera's rate.
+ */
+class CapturePipeline implements AutoCloseable {
+
+    private static final int PACKET_QUEUE_SIZE = 8;
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * How many packets back the read time of a decoded frame is looked up,
+     * which covers the reordering delay of common decoders.
+     */
+    private static final int READ_TIME_HISTORY = 16;
+
+    /**
+     * A packet with the time the capture thread read it.
+     */
+    private static final class Input {
+
+        final AVPacket packet;
+        final long readNanos;
+
+        /**
+         * Cleared for packets of intra-only streams that are only decoded
+         * for the frame bus, so they are not shown past the rate limit.
+         */
+        final boolean display;
+
+        Input(AVPacket packet, long readNanos, boolean display) {
+            this.packet = packet;
+            this.readNanos = readNanos;
+            this.display = display;
+        }
+    }
+
+    private final VideoDecoder mDecoder;
+    private final PendingFrame mPending;
+    private final FrameConverter mConverter;
+    private final FrameNotifier mNotifier;
+    private final VideoMetrics mMetrics;
+    private final FrameRateLimit mRateLimit;
+    private final FrameBus mBus;
+    private final boolean mLowLatency;
+
+    private final BlockingQueue<Input> mPackets = new ArrayBlockingQueue<>(PACKET_QUEUE_SIZE);
+
+    private final Thread mDecodeThread;
+
+    private volatile boolean mInputDone = false;
+    private volatile Throwable mFailure = null;
+    private volatile long mLastFrameNanos = 0;
+    private long mLastSubmittedNanos = 0;
+
+    // Decode thread only
+    private long mLastShownNanos = 0;
+    private final long[] mReadPts = new long[READ_TIME_HISTORY];
+    private final long[] mReadNanos = new long[READ_TIME_HISTORY];
+    private int mReadIndex = 0;
+    private boolean mDisplayDecoded = true;
+    private final Deque<Input> mBacklog = new ArrayDeque<>(PACKET_QUEUE_SIZE);
+
+    /**
+     * Creates the pipeline and starts its thread.
+     *
+     * @param decoder
+     *        the decoder for the captured stream. The pipeline takes ownership
+     *        and closes it.
+     * @param pending
+     *        receives the frames to show.
+     * @param converter
+     *        the converter of the frames shown, whose display size and crop
+     *        decide how far the decoder may reduce the resolution.
+     * @param notifier
+     *        notified after each frame to show.
+     * @param metrics
+     *        receives stage timings and frame counts.
+     * @param rateLimit
+     *        the most frames per second to show.
+     * @param bus
+     *        receives every decoded frame.
+     * @param lowLatency
+     *        if true, skip queued packets that a newer one makes stale.
+     */
+    CapturePipeline(VideoDecoder decoder, PendingFrame pending, FrameConverter converter,
+                    FrameNotifier notifier, VideoMetrics metrics, FrameRateLimit rateLimit,
+                    FrameBus bus, boolean lowLatency) {
+        mDecoder = decoder;
+        mPending = pending;
+        mConverter = converter;
+        mNotifier = notifier;
+        mMetrics = metrics;
+        mRateLimit = rateLimit;
+        mBus = bus;
+        mLowLatency = lowLatency;
+
+        mDecodeThread = new Thread(this::run, "Video Decode");
+        mDecodeThread.setDaemon(true);
+        mDecodeThread.start();
+    }
+
+    /**
+     * Queues a packet for decoding. Called by the capture thread only.
+     *
+     * @param packet
+     *        a packet allocated with {@code av_packet_alloc}. The pipeline
+     *        takes ownership and frees it.
+     * @param readNanos
+     *        when the packet was read.
+     * @return <code>false</code> if the rate limit held the packet's frame
+     *         back. Always <code>true</code> for inter-frame codecs, whose
+     *         frames are only limited once decoded.
+     * @throws IOException
+     *         if a pipeline stage has failed.
+     * @throws InterruptedException
+     *         if interrupted while waiting for room in the queue.
+     */
+    boolean submit(AVPacket packet, long readNanos) throws IOException, InterruptedException {
+        try {
+            checkFailure();
+            if (mDecoder.isIntraOnly()) {
+                long now = System.nanoTime();
+                boolean display = mRateLimit.admits(now, mLastSubmittedNanos);
+                if (!display && !mBus.hasSubscribers()) {
+                    // Held back by the rate limit, but the camera is alive
+                    mLastFrameNanos = now;
+                    return false;
+                }
+                if (display) {
+                    mLastSubmittedNanos = now;
+                } else {
+                    mLastFrameNanos = now;
+                }
+                Input input = new Input(packet, readNanos, display);
+                while (!mPackets.offer(input)) {
+                    Input stale = mPackets.poll();
+                    if (stale != null) {
+                        av_packet_free(stale.packet);
+                        mMetrics.packetDropped();
+                    }
+                }
+                packet = null;
+                return display;
+            } else {
+                Input input = new Input(packet, readNanos, true);
+                while (!mPackets.offer(input, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    checkFailure();
+                }
+                packet = null;
+                return true;
+            }
+        } finally {
+            if (packet != null) {
+                av_packet_free(packet);
+            }
+        }
+    }
+
+    /**
+     * Signals the end of the stream and waits until every queued packet has
+     * been decoded and handed to the display.
+     *
+     * @throws IOException
+     *         if a pipeline stage has failed.
+     * @throws InterruptedException
+     *         if interrupted while waiting.
+     */
+    void finish() throws IOException, InterruptedException {
+        mInputDone = true;
+        mDecodeThread.join();
+        checkFailure();
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which the last frame was
+     *         handed to the display or held back by the rate limit, or 0 if
+     *         none was yet.
+     */
+    long getLastFrameNanos() {
+        return mLastFrameNanos;
+    }
+
+    /**
+     * Stops the decode thread, frees the packets still queued and closes the
+     * decoder. The last frame handed to the display stays there.
+     */
+    @Override
+    public void close() {
+        mInputDone = true;
+        mDecodeThread.interrupt();
+        boolean interrupted = false;
+        while (mDecodeThread.isAlive()) {
+            try {
+                mDecodeThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        Input input;
+        while ((input = mPackets.poll()) != null) {
+            av_packet_free(input.packet);
+        }
+        while ((input = mBacklog.poll()) != null) {
+            av_packet_free(input.packet);
+        }
+        mDecoder.close();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            decodeLoop();
+        } catch (InterruptedException e) {
+            // Shutting down
+        } catch (Throwable t) {
+            mFailure = t;
+        }
+    }
+
+    private void decodeLoop() throws IOException, InterruptedException {
+        while (true) {
+            Input input = mBacklog.poll();
+            if (input == null) {
+                input = mPackets.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            if (input == null) {
+                if (mInputDone && mPackets.isEmpty()) {
+                    break;
+                }
+                continue;
+            }
+            if (mLowLatency) {
+                input = skipStale(input);
+            }
+            try {
+                updateLowres();
+                mReadIndex = (mReadIndex + 1) % READ_TIME_HISTORY;
+                mReadPts[mReadIndex] = input.packet.pts();
+                mReadNanos[mReadIndex] = input.readNanos;
+                mDisplayDecoded = input.display;
+                long start = System.nanoTime();
+                decode(input.packet);
+                mMetrics.record(Stage.DECODE, System.nanoTime() - start);
+            } finally {
+                av_packet_free(input.packet);
+            }
+        }
+        // Flush the frames the decoder still holds
+        mDisplayDecoded = true;
+        decode(null);
+    }
+
+    /**
+     * Moves the packets queued so far into the backlog and skips to the
+     * newest of them that decodes on its own, freeing the packets before it.
+     * A frame to show that is skipped passes that on to the packet replacing
+     * it, so the rate limit does not lose it.
+     *
+     * @param input
+     *        the packet about to be decoded.
+     * @return the packet to decode instead, which may be the same one.
+     */
+    private Input skipStale(Input input) {
+        mPackets.drainTo(mBacklog);
+        Input newest = null;
+        for (Input queued : mBacklog) {
+            if (mDecoder.isIntraOnly() || (queued.packet.flags() & AV_PKT_FLAG_KEY) != 0) {
+                newest = queued;
+            }
+        }
+        if (newest == null) {
+            return input;
+        }
+        boolean display = input.display;
+        av_packet_free(input.packet);
+        mMetrics.packetDropped();
+        Input stale;
+        while ((stale = mBacklog.poll()) != newest) {
+            display |= stale.display;
+            av_packet_free(stale.packet);
+            mMetrics.packetDropped();
+        }
+        return display == newest.display ? newest
+                : new Input(newest.packet, newest.readNanos, display);
+    }
+
+    /**
+     * Reopens the decoder at a different resolution if the display now calls
+     * for one, after flushing the frames it still holds.
+     */
+    private void updateLowres() throws IOException {
+        int maxLowres = mDecoder.getMaxLowres();
+        if (maxLowres == 0) {
+            return;
+        }
+        int lowres = mBus.hasSubscribers() ? 0
+                : mConverter.getLowres(mDecoder.getWidth(), mDecoder.getHeight(), maxLowres);
+        if (lowres != mDecoder.getLowres()) {
+            decode(null);
+            mDecoder.setLowres(lowres);
+        }
+    }
+
+    private void decode(AVPacket packet) {
+        while (!mDecoder.send(packet)) {
+            drainDecoder();
+        }
+        drainDecoder();
+    }
+
+    private void drainDecoder() {
+        AVFrame frame;
+        while ((frame = mDecoder.receive()) != null) {
+            mMetrics.frameDecoded();
+            // A subscriber arriving between packets finds the decoder still
+            // reduced; it gets the next full-size frame instead
+            if (mDecoder.getLowres() == 0) {
+                mBus.publish(frame, readNanosOf(frame));
+            }
+            if (!mDisplayDecoded || !admitDecoded()) {
+                av_frame_free(frame);
+                continue;
+            }
+            // A frame this replaces is counted as superseded by the holder,
+            // which covers a notification still queued for it
+            mPending.put(frame);
+            mLastFrameNanos = System.nanoTime();
+            mNotifier.frameReady();
+        }
+    }
+
+    /**
+     * Applies the rate limit to decoded frames of inter-frame codecs, whose
+     * packets all have to be decoded. Those of intra-only codecs were
+     * already limited when they were submitted.
+     */
+    private boolean admitDecoded() {
+        if (mDecoder.isIntraOnly()) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (!mRateLimit.admits(now, mLastShownNanos)) {
+            mLastFrameNanos = now;
+            return false;
+        }
+        mLastShownNanos = now;
+        return true;
+    }
+
+    /**
+     * Finds when the packet a frame was decoded from was read, by its
+     * timestamp. Falls back to the last packet read for streams without
+     * timestamps.
+     */
+    private long readNanosOf(AVFrame frame) {
+        long pts = frame.pts();
+        if (pts != AV_NOPTS_VALUE) {
+            for (int i = 0; i < READ_TIME_HISTORY; i++) {
+                int index = (mReadIndex - i + READ_TIME_HISTORY) % READ_TIME_HISTORY;
+                if (mReadPts[index] == pts) {
+                    return mReadNanos[index];
+                }
+            }
+        }
+        return mReadNanos[mReadIndex];
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable failure = mFailure;
+        if (failure != null) {
+            throw new IOException("Video pipeline failed: " + failure, failure);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package gov.lbl.als.bl831.video;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FrameGrabber.ImageMode;
+
+import gov.lbl.als.bl831.metrics.VideoMetrics;
+import gov.lbl.als.bl831.metrics.VideoMetrics.Stage;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avformat.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+/**
+ * Reads and decodes a video file on its own "Video Decode Ahead" thread, a
+ * few frames ahead of playback, so the thread presenting the frames only has
+ * to wait for their due time.
+ * <p>
+ * Each decoded frame is queued with its presentation time, taken from the
+ * frame's timestamp and counted from the first frame of the file. When
+ * looping, the file is rewound and the times keep increasing across the
+ * loops, so playback runs on one continuous clock. The queue is bounded and
+ * never drops a frame; the decode thread waits for room instead.
+ * <p>
+ * With a frame cache, the first pass also keeps a copy of every frame (see
+ * {@link FrameCache}). If the whole file fits, the file and decoder are closed
+ * at its end and later loops are replayed from memory without decoding,
+ * though still converted for display.
+ */
+class DecodeAhead implements AutoCloseable {
+
+    private static final int QUEUE_SIZE = 4;
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * Frame duration assumed when neither the frame nor the file gives one.
+     */
+    private static final long DEFAULT_FRAME_NANOS = 40000000L;
+
+    /**
+     * A decoded frame and when to show it.
+     */
+    static final class Entry {
+
+        final AVFrame frame;
+
+        /**
+         * Presentation time in nanoseconds since the start of playback.
+         */
+        final long mediaNanos;
+
+        Entry(AVFrame frame, long mediaNanos) {
+            this.frame = frame;
+            this.mediaNanos = mediaNanos;
+        }
+    }
+
+    private final File mFile;
+    private final boolean mLoop;
+    private final int mDecodeThreads;
+    private final boolean mGray;
+    private final VideoMetrics mMetrics;
+    private final FrameCache mCache;
+
+    private final BlockingQueue<Entry> mQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread mThread;
+
+    private volatile boolean mDone = false;
+    private volatile Throwable mFailure = null;
+
+    /** Presentation time of the start of the current pass through the file. */
+    private long mPassStartNanos = 0;
+    /** Timestamp of the first frame of the current pass, in stream units. */
+    private long mFirstPts = AV_NOPTS_VALUE;
+    private long mLastMediaNanos = -1;
+    private long mLastDurationNanos = 0;
+    private long mNominalFrameNanos = DEFAULT_FRAME_NANOS;
+
+    /**
+     * Starts reading the file.
+     *
+     * @param file
+     *        the video file to play.
+     * @param loop
+     *        if true, rewind and continue at the end of the file.
+     * @param decodeThreads
+     *        number of decoder threads, or 0 to let FFmpeg pick.
+     * @param gray
+     *        if true, let the decoder skip chroma (see {@link VideoDecoder}).
+     * @param cacheBytes
+     *        memory for replaying a looping file without decoding, or 0 to
+     *        decode every loop.
+     * @param metrics
+     *        receives read and decode timings and frame counts.
+     */
+    DecodeAhead(File file, boolean loop, int decodeThreads, boolean gray, long cacheBytes,
+                VideoMetrics metrics) {
+        mFile = file;
+        mLoop = loop;
+        mDecodeThreads = decodeThreads;
+        mGray = gray;
+        mCache = loop && cacheBytes > 0 ? new FrameCache(cacheBytes) : null;
+        mMetrics = metrics;
+
+        mThread = new Thread(this::run, "Video Decode Ahead");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Takes the next frame in presentation order, waiting for the decoder if
+     * none is queued yet.
+     *
+     * @return the next frame, owned by the caller, who must release it with
+     *         {@code av_frame_free}; or null at the end of the file.
+     * @throws IOException
+     *         if reading or decoding the file failed.
+     * @throws InterruptedException
+     *         if interrupted while waiting.
+     */
+    Entry take() throws IOException, InterruptedException {
+        while (true) {
+            Entry entry = mQueue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (entry != null) {
+                return entry;
+            }
+            if (mDone && mQueue.isEmpty()) {
+                checkFailure();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return the presentation time of the frame that {@link #take()} would
+     *         return next, or -1 if it has not been decoded yet.
+     */
+    long peekMediaNanos() {
+        Entry entry = mQueue.peek();
+        return entry != null ? entry.mediaNanos : -1;
+    }
+
+    /**
+     * Stops the decode thread and frees any queued frames.
+     */
+    @Override
+    public void close() {
+        mThread.interrupt();
+        boolean interrupted = false;
+        while (mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        Entry entry;
+        while ((entry = mQueue.poll()) != null) {
+            av_frame_free(entry.frame);
+        }
+        if (mCache != null) {
+            mCache.close();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(mFile)) {
+                grabber.setImageMode(ImageMode.RAW);
+                // The grabber only demuxes; its own decoder is never used
+                grabber.setVideoOption("threads", "1");
+                grabber.start();
+                readLoop(grabber.getFormatContext());
+            }
+            if (mCache != null && mCache.isUsable()) {
+                replayLoop();
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+        } catch (Throwable t) {
+            mFailure = t;
+        } finally {
+            mDone = true;
+        }
+    }
+
+    /**
+     * Reads and decodes the file, rewinding at the end if looping. Returns
+     * early at the end of the first pass once the frame cache holds all of
+     * it.
+     */
+    private void readLoop(AVFormatContext format) throws IOException, InterruptedException {
+        int streamIndex = av_find_best_stream(format, AVMEDIA_TYPE_VIDEO, -1, -1,
+                (AVCodec) null, 0);
+        if (streamIndex < 0) {
+            throw new IOException("No video stream in " + mFile);
+        }
+        AVStream stream = format.streams(streamIndex);
+        AVRational rate = av_guess_frame_rate(format, stream, null);
+        if (rate.num() > 0 && rate.den() > 0) {
+            mNominalFrameNanos = av_rescale(1000000000L, rate.den(), rate.num());
+        }
+        AVRational timeBase = stream.time_base();
+
+        AVPacket pkt = av_packet_alloc();
+        try (VideoDecoder decoder = new VideoDecoder(stream, mDecodeThreads, mGray, true,
+                false)) {
+            while (!Thread.currentThread().isInterrupted()) {
+                long readStart = System.nanoTime();
+                int ret = av_read_frame(format, pkt);
+                if (ret == AVERROR_EOF) {
+                    decode(decoder, null, timeBase);
+                    if (!mLoop || mLastMediaNanos < 0) {
+                        return;
+                    }
+                    if (mCache != null && mCache.isUsable()) {
+                        System.out.printf("Cached %d video frames (%d MB), replaying from memory%n",
+                                mCache.getEntries().size(), mCache.getBytes() >> 20);
+                        mPassStartNanos = mLastMediaNanos + mLastDurationNanos;
+                        return;
+                    }
+                    long startPts = stream.start_time() != AV_NOPTS_VALUE ? stream.start_time() : 0;
+                    ret = av_seek_frame(format, streamIndex, startPts, AVSEEK_FLAG_BACKWARD);
+                    if (ret < 0) {
+                        throw new IOException("Cannot rewind " + mFile + ": " + ret);
+                    }
+                    decoder.reset();
+                    mPassStartNanos = mLastMediaNanos + mLastDurationNanos;
+                    mFirstPts = AV_NOPTS_VALUE;
+                    continue;
+                }
+                if (ret < 0) {
+                    throw new IOException("av_read_frame failed: " + ret);
+                }
+                try {
+                    if (pkt.stream_index() != streamIndex) {
+                        continue;
+                    }
+                    mMetrics.record(Stage.GRAB, System.nanoTime() - readStart);
+                    mMetrics.frameCaptured();
+                    long start = System.nanoTime();
+                    decode(decoder, pkt, timeBase);
+                    mMetrics.record(Stage.DECODE, System.nanoTime() - start);
+                } finally {
+                    av_packet_unref(pkt);
+                }
+            }
+        } finally {
+            av_packet_free(pkt);
+        }
+    }
+
+    private void decode(VideoDecoder decoder, AVPacket packet, AVRational timeBase)
+            throws InterruptedException {
+        while (!decoder.send(packet)) {
+            drainDecoder(decoder, timeBase);
+        }
+        drainDecoder(decoder, timeBase);
+    }
+
+    private void drainDecoder(VideoDecoder decoder, AVRational timeBase)
+            throws InterruptedException {
+        AVFrame frame;
+        while ((frame = decoder.receive()) != null) {
+            mMetrics.frameDecoded();
+            Entry entry = new Entry(frame, presentationNanos(frame, timeBase));
+            if (mCache != null && mPassStartNanos == 0) {
+                mCache.add(frame, entry.mediaNanos);
+            }
+            try {
+                mQueue.put(entry);
+            } catch (InterruptedException e) {
+                av_frame_free(frame);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Queues the cached frames over and over, as references to the cached
+     * planes, until interrupted.
+     */
+    private void replayLoop() throws InterruptedException {
+        long passNanos = mPassStartNanos;
+        while (true) {
+            for (FrameCache.Entry cached : mCache.getEntries()) {
+                AVFrame frame = av_frame_clone(cached.frame);
+                Entry entry = new Entry(frame, mPassStartNanos + cached.mediaNanos);
+                mMetrics.frameCaptured();
+                try {
+                    mQueue.put(entry);
+                } catch (InterruptedException e) {
+                    av_frame_free(frame);
+                    throw e;
+                }
+            }
+            mPassStartNanos += passNanos;
+        }
+    }
+
+    /**
+     * Works out when to show a frame, from its timestamp where it has one and
+     * otherwise one frame after the previous.
+     */
+    private long presentationNanos(AVFrame frame, AVRational timeBase) {
+        long duration = frame.duration() > 0
+                ? av_rescale(frame.duration(), 1000000000L * timeBase.num(), timeBase.den())
+                : mNominalFrameNanos;
+        long pts = frame.best_effort_timestamp();
+        long mediaNanos;
+        if (pts == AV_NOPTS_VALUE) {
+            mediaNanos = mLastMediaNanos < 0 ? mPassStartNanos : mLastMediaNanos + mLastDurationNanos;
+        } else {
+            if (mFirstPts == AV_NOPTS_VALUE) {
+                mFirstPts = pts;
+            }
+            mediaNanos = mPassStartNanos
+                    + av_rescale(pts - mFirstPts, 1000000000L * timeBase.num(), timeBase.den());
+        }
+        // Never go back in time, even for broken timestamps
+        if (mediaNanos <= mLastMediaNanos) {
+            mediaNanos = mLastMediaNanos + mLastDurationNanos;
+        }
+        mLastMediaNanos = mediaNanos;
+        mLastDurationNanos = duration;
+        return mediaNanos;
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable failure = mFailure;
+        if (failure != null) {
+            throw new IOException("Video file playback failed: " + failure, failure);
+        }
+    }
+}
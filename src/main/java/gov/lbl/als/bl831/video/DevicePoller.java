@@ -0,0 +1,126 @@
+package gov.lbl.als.bl831.video;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVInputFormat;
+import org.bytedeco.javacpp.IntPointer;
+
+import io.tetrah.camerainfo.v4l2.ioctl.Ioctl;
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+
+/**
+ * Waits for a V4L2 device that FFmpeg reads in non-blocking mode to have a
+ * frame, so the capture thread sleeps in {@code poll()} instead of retrying
+ * the read on a timer.
+ * <p>
+ * The device's file descriptor is not part of FFmpeg's API, so it is read
+ * from the demuxer's private data and only trusted once it is shown to be
+ * the device that was opened: the file it refers to must be the same
+ * character device as the input's path, and must answer
+ * {@code VIDIOC_QUERYCAP}. Otherwise the input is read on a timer as for
+ * other inputs.
+ */
+class DevicePoller {
+
+    private static final short POLLIN = 1;
+    private static final int EINTR = 4;
+
+    /**
+     * Offset of the device's file descriptor in the private data of FFmpeg's
+     * V4L2 demuxer, {@code struct video_data} in libavdevice/v4l2.c, where it
+     * follows the {@code AVClass} pointer.
+     */
+    private static final int FD_INDEX = 2;
+
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFCHR = 0020000;
+
+    // sizeof(struct v4l2_capability)
+    private static final int CAPABILITY_SIZE = 104;
+    private static final int VIDIOC_QUERYCAP = Ioctl._IOR('V', 0, CAPABILITY_SIZE);
+
+    private final V4L2MmapCapture.LibC mLibC;
+    private final Runtime mRuntime;
+    private final int mFd;
+    private final Pointer mPollFd;
+
+    private DevicePoller(int fd) {
+        mLibC = V4L2MmapCapture.getLibC();
+        mRuntime = Runtime.getRuntime(mLibC);
+        mFd = fd;
+        mPollFd = Memory.allocateDirect(mRuntime, 8);
+    }
+
+    /**
+     * @param format
+     *        an opened input.
+     * @return a poller for the input's device, or null if it is not read by
+     *         FFmpeg's V4L2 demuxer or its file descriptor could not be
+     *         verified.
+     */
+    static DevicePoller forInput(AVFormatContext format) {
+        AVInputFormat input = format.iformat();
+        if (input == null || format.priv_data() == null
+                || !input.name().getString().startsWith("video4linux2")) {
+            return null;
+        }
+        int fd = new IntPointer(format.priv_data()).get(FD_INDEX);
+        String device = format.url() != null ? format.url().getString() : null;
+        if (fd < 0 || device == null || !isDevice(fd, device) || !answersQueryCap(fd)) {
+            System.err.printf("Cannot find the file descriptor of %s, not polling it%n", device);
+            return null;
+        }
+        return new DevicePoller(fd);
+    }
+
+    /**
+     * Checks that a file descriptor refers to the character device at a
+     * path. Its link in /proc gives what {@code fstat()} would, without a
+     * binding to glibc's versioned stat functions.
+     */
+    private static boolean isDevice(int fd, String device) {
+        try {
+            Path open = Paths.get("/proc/self/fd/" + fd);
+            Path path = Paths.get(device);
+            int mode = (Integer) Files.getAttribute(open, "unix:mode");
+            return (mode & S_IFMT) == S_IFCHR
+                    && Files.getAttribute(open, "unix:rdev")
+                            .equals(Files.getAttribute(path, "unix:rdev"));
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static boolean answersQueryCap(int fd) {
+        V4L2MmapCapture.LibC libC = V4L2MmapCapture.getLibC();
+        Pointer capability = Memory.allocateDirect(Runtime.getRuntime(libC), CAPABILITY_SIZE);
+        return libC.ioctl(fd, VIDIOC_QUERYCAP & 0xffffffffL, capability) == 0;
+    }
+
+    /**
+     * Waits until the device has a frame to read or reports an error, which
+     * the next read then returns.
+     *
+     * @param timeoutMillis
+     *        how long to wait at most.
+     * @throws IOException
+     *         if polling the device failed.
+     */
+    void await(int timeoutMillis) throws IOException {
+        mPollFd.putInt(0, mFd);
+        mPollFd.putShort(4, POLLIN);
+        mPollFd.putShort(6, (short) 0);
+        if (mLibC.poll(mPollFd, 1, timeoutMillis) < 0) {
+            int errno = mRuntime.getLastError();
+            if (errno != EINTR) {
+                throw new IOException("poll failed: errno " + errno);
+            }
+        }
+    }
+}
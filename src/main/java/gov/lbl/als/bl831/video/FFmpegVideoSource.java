@@ -1,44 +1,126 @@
 package gov.lbl.als.bl831.video;
 
+import java.awt.Dimension;
 import java.awt.Image;
+import java.awt.RenderingHints;
 import java.awt.event.ActionListener;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
-import java.nio.ByteBuffer;
-
-import javax.swing.SwingUtilities;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32C;
 
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
 import org.bytedeco.ffmpeg.avutil.AVFrame;
-import org.bytedeco.ffmpeg.swscale.SwsContext;
-import org.bytedeco.javacpp.BytePointer;
-import org.bytedeco.javacpp.IntPointer;
 import org.bytedeco.javacv.FFmpegFrameGrabber;
-import org.bytedeco.javacv.Frame;
-import org.bytedeco.javacv.Java2DFrameConverter;
 import org.bytedeco.javacv.FrameGrabber.ImageMode;
 
 import gov.lbl.als.bl831.AxisUriParser;
 import gov.lbl.als.bl831.V4L2UriParser;
 import gov.lbl.als.bl831.V4L2UriParser.V4L2UriComponents;
 import gov.lbl.als.bl831.VideoSource;
+import gov.lbl.als.bl831.metrics.VideoMetrics;
+import gov.lbl.als.bl831.metrics.VideoMetrics.Stage;
 import io.tetrah.camerainfo.v4l2.V4L2CameraInfo;
 import io.tetrah.camerainfo.v4l2.ioctl.V4L2Ioctl;
 import willibert.NetCamLib.CameraException;
 
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avformat.*;
 import static org.bytedeco.ffmpeg.global.avutil.*;
 import static org.bytedeco.ffmpeg.global.swscale.*;
 
 /**
  * Video source implementation using ByteDeco (JavaCV) for capturing video frames
  * from a V4L2 device or an HTTP MJPEG stream using FFmpeg.
+ * <p>
+ * Live sources are only demuxed by the grabber; the capture thread reads
+ * compressed packets and hands them to a {@link CapturePipeline}, which
+ * decodes them on a thread of its own, so reading the next packet never
+ * waits for a slow decode. The newest decoded frame is left in a
+ * {@link PendingFrame} and only converted when the display takes it, on the
+ * event dispatch thread, so frames the display never gets to are never
+ * converted. Files are read and decoded ahead on their own thread (see
+ * {@link DecodeAhead}), and the capture thread converts each frame and
+ * presents it at the time given by its timestamp; V4L2 buffers mapped with
+ * {@link V4L2MmapCapture} are converted straight out of the driver's memory
+ * on the capture thread.
+ * <p>
+ * Either way a single slice-parallel swscale pass (see
+ * {@link FrameConverter}) converts each frame, scaled to the display size if
+ * one was set, into an image owned by a triple buffer (see
+ * {@link FrameExchange}), which the video widget can draw without any further
+ * color conversion and which is recycled rather than reallocated. The image
+ * is {@code TYPE_INT_RGB}, or {@code TYPE_BYTE_GRAY} made from the luma
+ * alone in grayscale mode (see {@link #setGrayscale}).
+ * <p>
+ * Live sources are watched for stalls: if no frame is shown within the stall
+ * timeout, or the stream ends or fails, the grabber is torn down and reopened
+ * with bounded exponential backoff until frames arrive again.
  */
 public class FFmpegVideoSource implements VideoSource {
 
-    private final Java2DFrameConverter converter = new Java2DFrameConverter();
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 250;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 8000;
+
+    /**
+     * How long to sleep when a non-blocking read has no frame yet and the
+     * device cannot be polled.
+     */
+    private static final long DEVICE_POLL_MILLIS = 1;
+
+    /**
+     * Kernel buffers requested by the V4L2 mmap backend.
+     */
+    private static final int MMAP_BUFFER_COUNT = 4;
+
+    /**
+     * How far file playback may fall behind its clock before the clock is
+     * moved forward rather than catching up.
+     */
+    private static final long MAX_PLAYBACK_LAG_NANOS = 250000000L;
+
+    private final VideoMetrics mMetrics = new VideoMetrics();
+
+    private final FrameNotifier mFrameNotifier = new FrameNotifier(mMetrics);
+
+    private final FrameConverter mFrameConverter = new FrameConverter();
+
+    private volatile int mDecodeThreads = 0;
+
+    private volatile int mStallTimeoutMillis = 3000;
+
+    private volatile boolean mLowLatency = false;
 
-    private  ActionListener listener = null;
+    private volatile boolean mStampCaptureTime = false;
+
+    private volatile boolean mUseV4L2Mmap = false;
+
+    private volatile boolean mGrayscale = false;
+
+    private volatile long mFrameCacheBytes = 0;
+
+    private final FrameRateLimit mFrameRateLimit = new FrameRateLimit();
+
+    /**
+     * Set when the way frames are shown changed, so the next frame must be
+     * shown even if the camera repeats the last one.
+     */
+    private final AtomicBoolean mRefresh = new AtomicBoolean(false);
+
+    private PacketRecorder mRecorder;
+
+    private final FrameBus mFrameBus = new FrameBus();
+
+    private final Snapshotter mSnapshots = new Snapshotter(mFrameBus);
+
+    private volatile MjpegBroadcast mBroadcast;
 
     private VideoCaptureThread              mCaptureThread;
 
@@ -113,7 +195,6 @@ public class FFmpegVideoSource implements VideoSource {
      */
     private class VideoCaptureThread extends Thread {
         private volatile boolean running = false;
-        private SwsContext context = null;
 
         private final String source;
         private final String fourccPixelFormat;
@@ -124,9 +205,25 @@ public class FFmpegVideoSource implements VideoSource {
         private final boolean loop;
         private final File file;
 
-        private Image image;
+        private final FrameExchange frameExchange = new FrameExchange();
 
-        private ByteBuffer dstBufferCache = null;
+        /**
+         * Frames of live streams waiting to be converted when the display
+         * takes them. File playback and the V4L2 mmap backend convert ahead
+         * instead, into the same exchange.
+         */
+        private final PendingFrame pendingFrame = new PendingFrame(mFrameConverter,
+                frameExchange, mMetrics);
+
+        private final CRC32C checksum = new CRC32C();
+
+        /**
+         * When the current outage (or the initial connection) started, or 0
+         * while frames are arriving.
+         */
+        private long outageStartNanos = 0;
+        private long lastFrameNanos = 0;
+        private long reconnectDelayMillis = MIN_RECONNECT_DELAY_MILLIS;
 
         /**
          * Constructor for V4L2 device capture.
@@ -191,16 +288,54 @@ public class FFmpegVideoSource implements VideoSource {
         public void run() {
             running = true;
             try {
-                if (isUrl) {
-                    startUrlCapture(source);
-                } else if (fourccPixelFormat != null || width > 0) {
-                    startDeviceCapture(source, fourccPixelFormat, width, height, fps);
+                if (isUrl || fourccPixelFormat != null || width > 0) {
+                    runLiveCapture();
                 } else {
                     startFileCapture(source);
                 }
             } catch (IOException e) {
                 System.err.printf("Video capture error: %s%n", e.getMessage());
                 Thread.currentThread().interrupt();
+            } finally {
+                pendingFrame.close();
+            }
+        }
+
+        /**
+         * Captures from a live source until stopped, reopening it whenever it
+         * fails, ends or stalls. The delay before each attempt doubles, up to
+         * {@link #MAX_RECONNECT_DELAY_MILLIS}, and drops back to the minimum
+         * once a frame has been received again.
+         */
+        private void runLiveCapture() {
+            outageStartNanos = System.nanoTime();
+            while (running && !Thread.currentThread().isInterrupted()) {
+                try {
+                    if (isUrl) {
+                        startUrlCapture(source);
+                    } else {
+                        startDeviceCapture(source, fourccPixelFormat, width, height, fps);
+                    }
+                } catch (IOException e) {
+                    System.err.printf("Video capture error: %s%n", e.getMessage());
+                }
+                if (!running || Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                if (outageStartNanos == 0) {
+                    // The outage began with the last frame we showed
+                    outageStartNanos = lastFrameNanos;
+                }
+                System.err.printf("Video stream lost, reconnecting in %d ms%n",
+                        reconnectDelayMillis);
+                try {
+                    Thread.sleep(reconnectDelayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                reconnectDelayMillis = Math.min(reconnectDelayMillis * 2,
+                        MAX_RECONNECT_DELAY_MILLIS);
             }
         }
 
@@ -212,12 +347,14 @@ public class FFmpegVideoSource implements VideoSource {
         }
 
         /**
-         * Gets the current image from the video capture thread.
+         * Takes the newest image, converting the newest frame of a live
+         * stream first if it has not been yet.
          *
          * @return The current BufferedImage, or null if no image is available
          */
         public Image getImage() {
-            return image;
+            pendingFrame.convert();
+            return frameExchange.acquire();
         }
 
         /**
@@ -227,41 +364,89 @@ public class FFmpegVideoSource implements VideoSource {
          * @throws IOException If an I/O error occurs during capture
          */
         private void startUrlCapture(String url) throws IOException {
-            do {
-                try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(url)) {
-                    grabber.setOption("fflags", "nobuffer");
-                    grabber.start();
-                    captureLoop(grabber);
-                }
-            } while (loop && running);
+            long attemptNanos = System.nanoTime();
+            try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(url)) {
+                grabber.setImageMode(ImageMode.RAW);
+                grabber.setOption("fflags", "nobuffer");
+                // Fail blocked network reads, including the connect, after the
+                // stall timeout instead of waiting forever
+                grabber.setOption("rw_timeout", String.valueOf(mStallTimeoutMillis * 1000L));
+                // The grabber's own decoder is opened but never used
+                grabber.setVideoOption("threads", "1");
+                grabber.start();
+                captureLoop(grabber, attemptNanos);
+            }
         }
 
+        /**
+         * Plays a file at its own rate. Frames are read and decoded ahead by a
+         * {@link DecodeAhead}; this thread converts each one, then waits
+         * until its presentation time on a {@link System#nanoTime()} clock
+         * anchored at the first frame, and publishes it. Time spent decoding
+         * and converting thus comes out of the wait rather than adding to it.
+         * A frame whose successor is already due is skipped, and if playback
+         * falls far behind, e.g. after a long pause, the clock is re-anchored
+         * instead of racing to catch up.
+         */
         private void startFileCapture(String path) throws IOException {
-            Java2DFrameConverter fileConverter = new Java2DFrameConverter();
-            do {
-                try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(file)) {
-                    grabber.start();
-                    double fps = grabber.getFrameRate();
-                    long delay = fps > 0 ? (long) (1000.0 / fps) : 40;
-                    Frame f;
-                    while (!Thread.currentThread().isInterrupted()
-                            && running
-                            && (f = grabber.grabImage()) != null) {
-                        BufferedImage img = fileConverter.convert(f);
-                        if (img != null) {
-                            this.image = img;
-                            if (listener != null) {
-                                SwingUtilities.invokeLater(
-                                        () -> listener.actionPerformed(null));
+            try (DecodeAhead decodeAhead = new DecodeAhead(file, loop, mDecodeThreads,
+                    mGrayscale, mFrameCacheBytes, mMetrics)) {
+                long clockStart = 0;
+                long lastShownNanos = 0;
+                DecodeAhead.Entry entry;
+                while (!Thread.currentThread().isInterrupted()
+                        && running
+                        && (entry = decodeAhead.take()) != null) {
+                    try {
+                        long now = System.nanoTime();
+                        if (clockStart == 0) {
+                            clockStart = now - entry.mediaNanos;
+                        }
+                        long due = clockStart + entry.mediaNanos;
+                        if (now - due > MAX_PLAYBACK_LAG_NANOS) {
+                            clockStart += now - due;
+                            due = now;
+                        }
+                        long next = decodeAhead.peekMediaNanos();
+                        if (next >= 0 && clockStart + next <= now) {
+                            mMetrics.frameDropped();
+                            continue;
+                        }
+                        if (!mFrameRateLimit.admits(due, lastShownNanos)) {
+                            // Keep to the file's clock without showing the frame
+                            long wait = due - now;
+                            if (wait > 0) {
+                                TimeUnit.NANOSECONDS.sleep(wait);
                             }
+                            mFrameBus.publish(entry.frame, due);
+                            continue;
+                        }
+                        lastShownNanos = due;
+                        BufferedImage img = mFrameConverter.convert(entry.frame, frameExchange);
+                        mMetrics.record(Stage.CONVERT, System.nanoTime() - now);
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                        mFrameBus.publish(entry.frame, due);
+                        if (img == null) {
+                            continue;
                         }
-                        Thread.sleep(delay);
+                        if (mStampCaptureTime) {
+                            TimestampPattern.stamp(img, due);
+                        }
+                        frameExchange.publish();
+                        mMetrics.framePublished();
+                        if (!mFrameNotifier.frameReady()) {
+                            mMetrics.frameSuperseded();
+                        }
+                    } finally {
+                        av_frame_free(entry.frame);
                     }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    return;
                 }
-            } while (loop && running);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
 
         /**
@@ -280,221 +465,281 @@ public class FFmpegVideoSource implements VideoSource {
                 fourccPixelFormat = askDriverForPixelFormat(device);
                 System.out.printf("No pixel format specified, querying device '%s' returned pixel format '%s'%n", device, fourccPixelFormat);
             }
+            if (mUseV4L2Mmap && V4L2MmapCapture.isSupported(fourccPixelFormat)) {
+                startMmapCapture(device, fourccPixelFormat, width, height, fps);
+                return;
+            }
+            long attemptNanos = System.nanoTime();
             try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(device)) {
 
-                // Special handling for MJPEG streams. ffmpeg has depricated processing of older MJPEG
-                // streams, so we need to use a workaround. We set the image mode to RAW and then
-                // tell the driver to capture in native MJPEG format without conversion.
+                // The grabber only demuxes; packets are decoded by the capture pipeline.
+                // Compressed formats (MJPEG etc.) have no AV pixel format, so we tell the
+                // driver to capture in the native codec format instead.
+                grabber.setImageMode(ImageMode.RAW);
+                grabber.setVideoOption("threads", "1");
                 String avPixFormat = V4L2AVUtils.v4l2PixFmt2AvPixFmtString(fourccPixelFormat);
                 if (avPixFormat == null) {
                     avPixFormat = V4L2AVUtils.v4l2PixFmt2AvCodecString(fourccPixelFormat);
-                    grabber.setImageMode(ImageMode.RAW);
                 }
 
                 grabber.setOption("pixel_format", avPixFormat);
                 grabber.setImageWidth(width);
                 grabber.setImageHeight(height);
                 grabber.setFrameRate(fps);
-                grabber.setOption("fflags", "nobuffer");
+                // Non-blocking reads let the capture loop notice a device that
+                // stops delivering frames without reporting an error
+                grabber.setOption("fflags", "nobuffer+nonblock");
                 grabber.setOption("probesize", "32");
                 grabber.start();
-                captureLoop(grabber);
+                captureLoop(grabber, attemptNanos);
             }
         }
 
         /**
-         * Shared capture loop for both device and URL sources. Grabs frames,
-         * handles MJPEG conversion, and notifies the listener.
+         * Captures raw YUYV or NV12 frames from a V4L2 device on mapped kernel
+         * buffers, converting each one straight from the mapped memory before
+         * giving it back to the driver. Returns when no frame arrives within the
+         * stall timeout.
          *
-         * @param grabber The configured and started frame grabber
-         * @throws IOException If an I/O error occurs during capture
+         * @param device The video device to capture from
+         * @param fourccPixelFormat YUYV or NV12
+         * @param width The width of the video frames
+         * @param height The height of the video frames
+         * @param fps The frames per second rate
+         * @throws IOException If the device fails or cannot be configured
          */
-        private void captureLoop(FFmpegFrameGrabber grabber) throws IOException {
-            while (!Thread.currentThread().isInterrupted() && running) {
-                // Suppress "deprecated pixel format used" warning from FFmpeg's internal
-                // MJPEG decoder. The warning fires inside grabImage() on every frame because
-                // MJPEG cameras (both Axis and V4L2) send yuvj422p, which FFmpeg deprecated
-                // in favor of yuv422p with a full-range flag. The warning originates from
-                // native swscale code inside FFmpegFrameGrabber, not from our conversion code.
-                //
-                // av_log_set_callback was attempted but crashes (JavaCPP_exception) because
-                // the native callback runs on FFmpeg's thread and can't safely interact with
-                // Java's exception handling. Toggling the log level around the specific call
-                // is the only reliable suppression from Java.
-                //
-                // Alternative: filter stderr in the launcher script (e.g. 2>&1 | grep -v).
-                int logLevel = av_log_get_level();
-                av_log_set_level(AV_LOG_ERROR);
-                Frame f = grabber.grabImage();
-                av_log_set_level(logLevel);
-                if (f == null)
-                    break;
-
-                // Special handling for MJPEG frames.
-                f = swsScaleMjpegToBgr24Frame(f);
-                BufferedImage img = converter.convert(f);
-                f.close();
-                if (img != null) {
-                    this.image = img;
-                    if (listener != null) {
-                        SwingUtilities.invokeLater(() -> listener.actionPerformed(null));
+        private void startMmapCapture(String device, String fourccPixelFormat,
+                                      int width, int height, int fps) throws IOException {
+            long attemptNanos = System.nanoTime();
+            try (V4L2MmapCapture capture = new V4L2MmapCapture(device, fourccPixelFormat,
+                    width, height, fps, MMAP_BUFFER_COUNT)) {
+                capture.start();
+                boolean receiving = false;
+                long lastShownNanos = 0;
+                while (!Thread.currentThread().isInterrupted() && running) {
+                    V4L2MmapCapture.Buffer buffer = capture.dequeue(mStallTimeoutMillis);
+                    if (buffer == null) {
+                        System.err.printf("No video frame for %d ms%n", mStallTimeoutMillis);
+                        return;
+                    }
+                    // The driver's timestamp is the capture time, so GRAB is
+                    // how long the frame waited in the kernel queue.
+                    long dequeued = System.nanoTime();
+                    mMetrics.record(Stage.GRAB, dequeued - buffer.getTimestampNanos());
+                    mMetrics.frameCaptured();
+                    // Raw frames need no decoding
+                    mMetrics.frameDecoded();
+                    if (mFrameBus.hasSubscribers()) {
+                        // The buffer goes back to the driver, so they get a copy
+                        AVFrame copy = capture.copy(buffer);
+                        if (copy != null) {
+                            try {
+                                mFrameBus.publish(copy, buffer.getTimestampNanos());
+                            } finally {
+                                av_frame_free(copy);
+                            }
+                        }
+                    }
+                    if (!mFrameRateLimit.admits(dequeued, lastShownNanos)) {
+                        capture.requeue(buffer);
+                        continue;
+                    }
+                    lastShownNanos = dequeued;
+                    BufferedImage img;
+                    try {
+                        img = mFrameConverter.convert(capture.getWidth(), capture.getHeight(),
+                                capture.getAvPixelFormat(), capture.isFullRange(),
+                                buffer.getData(), buffer.getLinesize(), frameExchange);
+                        if (img != null && mStampCaptureTime) {
+                            TimestampPattern.stamp(img, buffer.getTimestampNanos());
+                        }
+                    } finally {
+                        capture.requeue(buffer);
+                    }
+                    if (img != null) {
+                        frameExchange.publish();
+                        long published = System.nanoTime();
+                        mMetrics.record(Stage.CONVERT, published - dequeued);
+                        mMetrics.framePublished();
+                        if (!mFrameNotifier.frameReady()) {
+                            mMetrics.frameSuperseded();
+                        }
+                        if (!receiving) {
+                            receiving = true;
+                            reportFirstFrame(attemptNanos, published);
+                        }
+                        lastFrameNanos = published;
                     }
                 }
             }
         }
 
-        private String askDriverForPixelFormat(String device) {
-            String fourcc = null;
-            try {
-                fourcc = (new V4L2CameraInfo().getPixelFormats(device, V4L2Ioctl.V4L2_BUF_TYPE_VIDEO_CAPTURE))
-                   .stream().findFirst().map(f -> f.getFourcc()).orElse(null);
-            } catch (IOException e) {
-            }
-            return fourcc;
-        }
-
         /**
-         * Scales MJPEG frame to BGR24 format.
+         * Shared capture loop for both device and URL sources. Reads packets of
+         * the video stream and feeds them to a capture pipeline, which decodes,
+         * converts and publishes them on its own threads. Returns when the
+         * stream ends or no frame has been shown for the stall timeout.
          *
-         * @param frame The input frame to convert
-         * @return The converted frame in BGR24 format
+         * @param grabber The configured and started frame grabber
+         * @param attemptNanos When opening the grabber started
+         * @throws IOException If an I/O error occurs during capture
          */
-        private Frame swsScaleMjpegToBgr24Frame(Frame frame) {
-            if (frame.opaque instanceof AVFrame) {
-                AVFrame avf = (AVFrame) frame.opaque;
-                int srcFmt = avf.format();
-                // Normalize deprecated YUVJ* to corresponding YUV* while preserving full-range
-                // via colorspace details
-                switch (srcFmt) {
-                    case AV_PIX_FMT_YUVJ420P:
-                        srcFmt = AV_PIX_FMT_YUV420P;
-                        break;
-                    case AV_PIX_FMT_YUVJ422P:
-                        srcFmt = AV_PIX_FMT_YUV422P;
-                        break;
-                    case AV_PIX_FMT_YUVJ444P:
-                        srcFmt = AV_PIX_FMT_YUV444P;
-                        break;
-                    case AV_PIX_FMT_YUVJ440P:
-                        srcFmt = AV_PIX_FMT_YUV440P;
-                        break;
-                    default:
-                        break;
-                }
+        private void captureLoop(FFmpegFrameGrabber grabber, long attemptNanos) throws IOException {
+            AVFormatContext format = grabber.getFormatContext();
+            int streamIndex = av_find_best_stream(format, AVMEDIA_TYPE_VIDEO, -1, -1,
+                    (AVCodec) null, 0);
+            if (streamIndex < 0) {
+                throw new IOException("No video stream in " + source);
+            }
+            boolean lowLatency = mLowLatency;
+            // Slice threads only: frame threads would hold back live frames
+            VideoDecoder decoder = new VideoDecoder(format.streams(streamIndex), mDecodeThreads,
+                    mGrayscale, false, lowLatency);
+            if (mRecorder != null) {
+                mRecorder.beginStream(format.streams(streamIndex), decoder.isIntraOnly());
+            }
+            // Identical packets only decode to identical pictures if every
+            // packet decodes on its own
+            boolean skipRepeats = decoder.isIntraOnly();
+            int codecId = format.streams(streamIndex).codecpar().codec_id();
+            long lastFingerprint = -1;
+            long lastSkipNanos = 0;
+            DevicePoller poller = DevicePoller.forInput(format);
+            AVPacket pkt = null;
+            try (CapturePipeline pipeline = new CapturePipeline(decoder, pendingFrame,
+                    mFrameConverter, mFrameNotifier, mMetrics, mFrameRateLimit,
+                    mFrameBus, lowLatency)) {
+                long sessionNanos = System.nanoTime();
+                boolean receiving = false;
+                while (!Thread.currentThread().isInterrupted() && running) {
+                    long frameNanos = pipeline.getLastFrameNanos();
+                    if (frameNanos != 0 && lastSkipNanos - frameNanos > 0) {
+                        // A repeated frame shows the camera is still alive
+                        frameNanos = lastSkipNanos;
+                    }
+                    if (frameNanos != 0) {
+                        if (!receiving) {
+                            receiving = true;
+                            reportFirstFrame(attemptNanos, frameNanos);
+                        }
+                        lastFrameNanos = frameNanos;
+                    }
+                    long idleMillis = (System.nanoTime()
+                            - (receiving ? lastFrameNanos : sessionNanos)) / 1000000;
+                    if (idleMillis > mStallTimeoutMillis) {
+                        System.err.printf("No video frame for %d ms%n", idleMillis);
+                        return;
+                    }
 
-                // Do the conversion if the format has changed, otherwise return the original
-                // frame.
-                if (avf.format() != srcFmt) {
-                    Frame convertedFrame = swsScaleToBgr24Frame(avf, srcFmt);
-                    frame.close();
-                    frame = convertedFrame;
+                    if (pkt == null) {
+                        pkt = av_packet_alloc();
+                    }
+                    long readStart = System.nanoTime();
+                    int ret = av_read_frame(format, pkt);
+                    if (ret == AVERROR_EAGAIN()) {
+                        // Wait for the next frame, but no longer than the
+                        // stall timeout allows
+                        if (poller != null) {
+                            poller.await((int) Math.max(mStallTimeoutMillis - idleMillis, 1));
+                        } else {
+                            Thread.sleep(DEVICE_POLL_MILLIS);
+                        }
+                        continue;
+                    }
+                    if (ret == AVERROR_EOF) {
+                        pipeline.finish();
+                        return;
+                    }
+                    if (ret < 0) {
+                        throw new IOException("av_read_frame failed: " + ret);
+                    }
+                    if (pkt.stream_index() != streamIndex) {
+                        av_packet_unref(pkt);
+                        continue;
+                    }
+                    long readNanos = System.nanoTime();
+                    mMetrics.record(Stage.GRAB, readNanos - readStart);
+                    mMetrics.frameCaptured();
+                    if (mSnapshots.isWaiting()) {
+                        mSnapshots.offerPacket(pkt, codecId);
+                    }
+                    // The recording and the re-stream keep every packet,
+                    // repeats included: a still scene plays back for as long
+                    // as it lasted, and a viewer connecting during one still
+                    // gets a frame
+                    if (mRecorder != null) {
+                        mRecorder.record(pkt);
+                    }
+                    MjpegBroadcast broadcast = mBroadcast;
+                    if (broadcast != null && codecId == AV_CODEC_ID_MJPEG) {
+                        broadcast.publish(pkt);
+                    }
+                    if (mRefresh.getAndSet(false)) {
+                        lastFingerprint = -1;
+                    }
+                    // Subscribers of the bus, such as a snapshot still
+                    // waiting, need this packet decoded
+                    long fingerprint = -1;
+                    if (skipRepeats && !mFrameBus.hasSubscribers()) {
+                        fingerprint = fingerprint(pkt);
+                        if (fingerprint == lastFingerprint) {
+                            av_packet_unref(pkt);
+                            lastSkipNanos = System.nanoTime();
+                            mMetrics.frameSkipped();
+                            continue;
+                        }
+                    }
+                    boolean shown = pipeline.submit(pkt, readNanos);
+                    pkt = null;
+                    // Only a frame that is shown can stand in for its
+                    // repeats; one the rate limit held back must not
+                    lastFingerprint = shown ? fingerprint : -1;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (pkt != null) {
+                    av_packet_free(pkt);
                 }
             }
-            return frame;
         }
 
         /**
-         * Performs the actual scaling from MJPEG to BGR24 format.
-         *
-         * @param src The source AVFrame
-         * @param srcFmt The source pixel format
-         * @return The scaled frame in BGR24 format
+         * Computes a CRC32C of a packet's payload, combined with its size,
+         * to recognize a camera sending the same compressed frame again.
          */
-        private Frame swsScaleToBgr24Frame(AVFrame src, int srcFmt) {
-            int w = src.width();
-            int h = src.height();
-
-            int dstFmt = AV_PIX_FMT_BGR24;
-
-            // 1) Get or create scaler context (check for null)
-            context = sws_getCachedContext(
-                    context,
-                    w, h, srcFmt,
-                    w, h, dstFmt,
-                    SWS_BILINEAR,
-                    null, null, (double[]) null);
-            if (context == null) {
-                throw new RuntimeException("sws_getCachedContext returned null");
-            }
+        private long fingerprint(AVPacket pkt) {
+            checksum.reset();
+            checksum.update(pkt.data().capacity(pkt.size()).asByteBuffer());
+            return ((long) pkt.size() << 32) | checksum.getValue();
+        }
 
-            // 2) Full-range + BT.601 coefficients; use correct IntPointer overloads
-            // For SD content, ITU-601 (bt470bg) is typical for MJPEG; change to
-            // SWS_CS_DEFAULT or SWS_CS_ITU709 if appropriate.
-            int cs = SWS_CS_ITU601;
-            IntPointer inv = sws_getCoefficients(cs);
-            IntPointer tab = sws_getCoefficients(cs);
-
-            int srcRange = 1; // full range for YUVJ input
-            int dstRange = 1; // keep full range output (common for UI processing)
-            int brightness = 0;
-            int contrast = 1 << 16; // unity in swscale fixed-point
-            int saturation = 1 << 16; // unity in swscale fixed-point
-
-            // Set colorspace/range; ignore return code < 0 only if library too old, but
-            // typically this succeeds
-            sws_setColorspaceDetails(context, inv, srcRange, tab, dstRange, brightness, contrast, saturation);
-
-            // 3) Allocate destination AVFrame and buffer properly
-            AVFrame dst = av_frame_alloc();
-            if (dst == null) {
-                throw new RuntimeException("av_frame_alloc failed");
-            }
-            dst.format(dstFmt);
-            dst.width(w);
-            dst.height(h);
-
-            // Compute buffer size and allocate a direct buffer
-            int bufSize = av_image_get_buffer_size(dstFmt, w, h, 1);
-            if (bufSize < 0) {
-                av_frame_free(dst);
-                throw new RuntimeException("av_image_get_buffer_size failed");
-            }
-            if (dstBufferCache == null || dstBufferCache.capacity() != bufSize) {
-                dstBufferCache = ByteBuffer.allocateDirect(bufSize);
+        /**
+         * Logs how long it took to get a picture after the stream was opened,
+         * and after the outage began if this was a reconnect.
+         */
+        private void reportFirstFrame(long attemptNanos, long frameNanos) {
+            long firstFrameMillis = (frameNanos - attemptNanos) / 1000000;
+            long outageMillis = (frameNanos - outageStartNanos) / 1000000;
+            if (lastFrameNanos == 0) {
+                System.out.printf("First video frame after %d ms%n", outageMillis);
             } else {
-                dstBufferCache.clear();
-            }
-            ByteBuffer dstBuf = dstBufferCache;
-
-            // Fill dst->data/linesize to point into dstBuf
-            // Use a BytePointer on the direct buffer; do not use Pointer.pointerToBuffer()
-            // for FFmpeg image fill
-            BytePointer dstPtr = new BytePointer(dstBuf);
-            int ret = av_image_fill_arrays(
-                    dst.data(), dst.linesize(),
-                    dstPtr,
-                    dstFmt, w, h, 1);
-            if (ret < 0) {
-                av_frame_free(dst);
-                throw new RuntimeException("av_image_fill_arrays failed: " + ret);
+                System.out.printf("Video stream recovered after %d ms outage, "
+                        + "%d ms from reconnect to first frame%n", outageMillis, firstFrameMillis);
             }
+            outageStartNanos = 0;
+            reconnectDelayMillis = MIN_RECONNECT_DELAY_MILLIS;
+        }
 
-            // 4) Scale from YUV -> BGR24
-            int scaled = sws_scale(context, src.data(), src.linesize(), 0, h, dst.data(), dst.linesize());
-            if (scaled != h) {
-                av_frame_free(dst);
-                throw new RuntimeException("sws_scale returned " + scaled + " (expected " + h + ")");
+        private String askDriverForPixelFormat(String device) {
+            String fourcc = null;
+            try {
+                fourcc = (new V4L2CameraInfo().getPixelFormats(device, V4L2Ioctl.V4L2_BUF_TYPE_VIDEO_CAPTURE))
+                   .stream().findFirst().map(f -> f.getFourcc()).orElse(null);
+            } catch (IOException e) {
             }
-
-            // 5) Wrap into a JavaCV Frame (BGR24, 3 channels)
-            Frame out = new Frame(w, h, Frame.DEPTH_UBYTE, 3);
-            out.imageStride = dst.linesize(0);
-            out.createIndexer();
-
-            ByteBuffer outBuf = (ByteBuffer) out.image[0];
-            dstBuf.position(0).limit(bufSize);
-            outBuf.position(0).limit(bufSize);
-            outBuf.put(dstBuf);
-            outBuf.flip();
-
-            // 6) Cleanup native AVFrame structure (not the Java ByteBuffer)
-            // av_frame_free frees only the AVFrame struct here (no av_malloc buffer was
-            // tied to data[0]).
-            av_frame_free(dst);
-
-            return out;
+            return fourcc;
         }
-
     }
 
     /**
@@ -504,6 +749,9 @@ public class FFmpegVideoSource implements VideoSource {
      */
     @Override
     public void start() throws IOException {
+        if (mRecorder != null) {
+            mRecorder.start();
+        }
         mCaptureThread.start();
     }
 
@@ -515,10 +763,18 @@ public class FFmpegVideoSource implements VideoSource {
     @Override
     public void stop() throws IOException {
         mCaptureThread.stopRunning();
+        if (mRecorder != null) {
+            mRecorder.close();
+        }
+        mSnapshots.close();
     }
 
     /**
-     * Gets the current image from the video capture.
+     * Takes the newest image from the video capture. The returned image is
+     * only valid until the next call, after which the capture thread may
+     * reuse it for a later frame. Frames of live streams are converted here,
+     * on the calling thread, so frames that are never taken are never
+     * converted.
      *
      * @return The current BufferedImage, or null if no image is available
      */
@@ -528,12 +784,254 @@ public class FFmpegVideoSource implements VideoSource {
     }
 
     /**
-     * Adds an action listener to be notified when new frames are available.
+     * Sets the size of the area the video is shown in. Frames are scaled to fit
+     * it, preserving their aspect ratio, as part of the color conversion.
+     *
+     * @param size The display area in pixels, or null for the native frame size
+     */
+    @Override
+    public void setDisplaySize(Dimension size) {
+        mFrameConverter.setDisplaySize(size);
+        mRefresh.set(true);
+    }
+
+    /**
+     * Makes the next frame of a live stream be decoded and shown even if the
+     * camera repeats the last one.
+     */
+    @Override
+    public void refresh() {
+        mRefresh.set(true);
+    }
+
+    /**
+     * Crops frames to a region of interest as part of the color conversion,
+     * before they are scaled to the display size. The next frame is shown
+     * cropped even if the camera repeats the last one.
+     *
+     * @param viewport The region in normalized full-frame coordinates, or null
+     *        for the whole frame
+     * @return Always true
+     */
+    @Override
+    public boolean setViewport(Rectangle2D viewport) {
+        mFrameConverter.setCrop(viewport);
+        mRefresh.set(true);
+        return true;
+    }
+
+    /**
+     * Selects the swscale filter used to scale frames to the display size.
+     *
+     * @param interpolationHint One of the {@link RenderingHints}
+     *        {@code VALUE_INTERPOLATION_*} values, or null for the default
+     *        (bilinear)
+     */
+    public void setScalingInterpolation(Object interpolationHint) {
+        if (interpolationHint == RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR) {
+            mFrameConverter.setScalingFlags(SWS_POINT);
+        } else if (interpolationHint == RenderingHints.VALUE_INTERPOLATION_BICUBIC) {
+            mFrameConverter.setScalingFlags(SWS_BICUBIC);
+        } else {
+            mFrameConverter.setScalingFlags(SWS_BILINEAR);
+        }
+    }
+
+    /**
+     * Sets the number of threads used to decode. Live streams split each
+     * frame into slices between them, which adds no delay; file playback
+     * also decodes several frames at once. Takes effect the next time the
+     * stream is opened.
+     *
+     * @param threads The number of decoder threads, or 0 to use one per core
+     */
+    public void setDecodeThreads(int threads) {
+        mDecodeThreads = threads;
+    }
+
+    /**
+     * Sets the number of threads converting slices of each frame in
+     * parallel. Takes effect with the next frame.
+     *
+     * @param threads The number of converter threads, or 0 to use one per
+     *        core. Default 2.
+     */
+    public void setConvertThreads(int threads) {
+        mFrameConverter.setThreads(threads);
+    }
+
+    /**
+     * Enables drawing each frame's capture time into the frame, so the video
+     * widget can measure capture-to-paint latency (see
+     * {@link TimestampPattern}). Only file playback and the V4L2 mmap
+     * backend, which stamps the driver's capture time, stamp frames.
+     *
+     * @param stamp If true, stamp the capture time into every frame
+     */
+    public void setLatencyStamping(boolean stamp) {
+        mStampCaptureTime = stamp;
+    }
+
+    /**
+     * Shows the video in grayscale, made from the luma plane of each frame
+     * alone. This skips the color conversion, makes the images a quarter of
+     * the size, and lets decoders that can, such as MJPEG, skip decoding the
+     * color planes too. Decoded frames on the {@link FrameBus} then carry
+     * valid luma only, and snapshots of them are grayscale as well; JPEG
+     * frames saved as received keep their color. Decoding changes the next
+     * time the stream is opened.
+     *
+     * @param gray If true, show grayscale video
+     */
+    public void setGrayscale(boolean gray) {
+        mGrayscale = gray;
+        mFrameConverter.setGrayscale(gray);
+        mSnapshots.setGrayscale(gray);
+    }
+
+    /**
+     * Selects the native V4L2 backend for raw YUYV and NV12 devices, which
+     * converts frames straight from mapped kernel buffers instead of going
+     * through FFmpeg's v4l2 demuxer. Other pixel formats always use FFmpeg.
+     * Takes effect the next time the device is opened.
+     *
+     * @param mmap If true, use the mmap backend where possible
+     */
+    public void setV4L2Mmap(boolean mmap) {
+        mUseV4L2Mmap = mmap;
+    }
+
+    /**
+     * Limits the rate at which frames are converted and shown, e.g. while
+     * nobody is using the display. The source keeps reading frames, so the
+     * newest one is shown as soon as the limit is raised.
+     *
+     * @param fps The most frames per second to show, 0 to show none, or
+     *        {@link Double#POSITIVE_INFINITY} for no limit
+     */
+    @Override
+    public void setFrameRateLimit(double fps) {
+        mFrameRateLimit.setMaxFps(fps);
+        mRefresh.set(true);
+    }
+
+    /**
+     * Lets a looping file be decoded once and replayed from memory. The
+     * decoded frames of the first loop are kept if they fit in the given
+     * amount of memory; otherwise every loop is decoded as before. The frames
+     * are still converted for display as they are shown. Takes effect when
+     * playback starts.
+     *
+     * @param bytes Memory for the decoded frames, or 0 to always decode
+     */
+    public void setFrameCacheSize(long bytes) {
+        mFrameCacheBytes = bytes;
+    }
+
+    /**
+     * Keeps the last part of a live stream on disk, as the packets the camera
+     * sent, so it can be exported later (see {@link PacketRecorder}). Must be
+     * called before {@link #start()}. Device capture through the V4L2 mmap
+     * backend and file playback are not recorded.
+     *
+     * @param directory Where to keep the recording
+     * @param seconds How much video to keep
+     */
+    public void setRecording(File directory, int seconds) {
+        mRecorder = new PacketRecorder(directory, seconds);
+    }
+
+    /**
+     * Writes the last part of the recording to a new file in the recording
+     * directory. The capture thread is not held up while the file is written.
+     *
+     * @param seconds How much video to export, counted back from now
+     * @return The exported file once it is written
+     */
+    @Override
+    public CompletableFuture<File> exportRecording(int seconds) {
+        if (mRecorder == null) {
+            return VideoSource.super.exportRecording(seconds);
+        }
+        return mRecorder.export(seconds);
+    }
+
+    /**
+     * Saves the next frame to a JPEG file. Frames from cameras that send
+     * JPEG are written as received, without decoding or encoding; others are
+     * converted at full size and encoded. The work is done on a background
+     * thread, so neither capture nor the display waits for it.
+     *
+     * @param file The JPEG file to write
+     * @return The file once it is written
+     */
+    @Override
+    public CompletableFuture<File> snapshot(File file) {
+        return mSnapshots.request(file);
+    }
+
+    /**
+     * @return the bus every decoded frame of this source is published to.
+     */
+    @Override
+    public FrameBus getFrameBus() {
+        return mFrameBus;
+    }
+
+    /**
+     * Passes the JPEG frames of live MJPEG streams on to remote viewers, as
+     * received (see {@link MjpegStreamServer}).
+     *
+     * @param broadcast The viewers to pass the frames to
+     */
+    void setBroadcast(MjpegBroadcast broadcast) {
+        mBroadcast = broadcast;
+    }
+
+    /**
+     * Sets how long a live source may go without delivering a frame before
+     * it is considered stalled and reopened. Network read timeouts take effect
+     * the next time the stream is opened.
      *
-     * @param listener The ActionListener to add
+     * @param millis The stall timeout in milliseconds
+     */
+    public void setStallTimeout(int millis) {
+        mStallTimeoutMillis = millis;
+    }
+
+    /**
+     * Trades smoothness for latency on live streams: packets that queued up
+     * while decoding fell behind are skipped in favor of the newest one that
+     * decodes on its own, and the decoder outputs each frame as soon as it
+     * is decoded instead of waiting for later frames to settle their order.
+     * Takes effect the next time the stream is opened.
+     *
+     * @param lowLatency True to always decode the newest frame available
+     */
+    public void setLowLatency(boolean lowLatency) {
+        mLowLatency = lowLatency;
+    }
+
+    /**
+     * Sets the action listener to be notified on the event dispatch thread when
+     * new frames are available. Notifications are coalesced: at most one is
+     * queued at a time, and it delivers whatever frame is newest when it runs.
+     *
+     * @param listener The ActionListener, which takes the images
+     * @throws IllegalStateException If a listener was already added; other
+     *         consumers subscribe to the {@link #getFrameBus() frame bus}
      */
     @Override
     public void addActionListener(ActionListener listener) {
-        this.listener = listener;
+        mFrameNotifier.setListener(listener);
+    }
+
+    /**
+     * @return the counters and stage timings of this source's capture
+     *         pipeline.
+     */
+    @Override
+    public VideoMetrics getMetrics() {
+        return mMetrics;
     }
 }
@@ -0,0 +1,193 @@
+package gov.lbl.als.bl831.video;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+/**
+ * Hands the decoded frames of one source to any number of subscribers, such
+ * as its snapshots or image analysis, without copying them.
+ * <p>
+ * Each frame is published once as a {@link VideoFrame}, which every
+ * subscriber receives a reference to through a queue of its own. How a full
+ * queue is handled is up to the subscriber (see {@link Delivery}). While
+ * nobody is subscribed, publishing only counts the frame.
+ * <p>
+ * Frames are published as they are decoded, before the display's frame rate
+ * limit, so throttling the display does not starve the subscribers. While
+ * anybody is subscribed, a live source decodes every packet, including the
+ * repeats of a still scene it would otherwise skip, at full resolution;
+ * frames it decodes at a reduced resolution for the display, such as the
+ * ones already under way when a subscriber arrives, are not published.
+ */
+public class FrameBus {
+
+    /**
+     * What happens to a frame that arrives while a subscriber's queue is
+     * full.
+     */
+    public enum Delivery {
+        /**
+         * Keep only the newest frame, for consumers that want the current
+         * picture and nothing else.
+         */
+        LATEST,
+        /**
+         * Queue up to the given number of frames, dropping the oldest one
+         * when full.
+         */
+        QUEUE,
+        /**
+         * Queue up to the given number of frames, making the source wait
+         * when full. Slows down capture for everyone, so only for consumers
+         * that must see every frame, such as offline analysis of files.
+         */
+        BLOCKING
+    }
+
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * One subscriber's queue of frames.
+     */
+    public final class Subscription implements AutoCloseable {
+
+        private final Delivery mDelivery;
+        private final BlockingQueue<VideoFrame> mFrames;
+        private volatile long mDropped = 0;
+        private volatile boolean mClosed = false;
+
+        private Subscription(Delivery delivery, int capacity) {
+            mDelivery = delivery;
+            mFrames = new ArrayBlockingQueue<>(delivery == Delivery.LATEST ? 1 : capacity);
+        }
+
+        /**
+         * Waits for the next frame.
+         *
+         * @return the frame, which the caller must close, or null if none
+         *         arrived within the timeout.
+         */
+        public VideoFrame take(long timeoutMillis) throws InterruptedException {
+            return mFrames.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * @return frames this subscriber was too slow to take.
+         */
+        public long getDropped() {
+            return mDropped;
+        }
+
+        /**
+         * Unsubscribes and releases the frames not yet taken.
+         */
+        @Override
+        public void close() {
+            mClosed = true;
+            mSubscriptions.remove(this);
+            release();
+        }
+
+        /**
+         * Called on the publishing thread.
+         *
+         * @param frame
+         *        a reference the subscription takes ownership of.
+         */
+        private void offer(VideoFrame frame) {
+            try {
+                if (mDelivery == Delivery.BLOCKING) {
+                    while (!mFrames.offer(frame, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        if (mClosed) {
+                            frame.close();
+                            return;
+                        }
+                    }
+                } else {
+                    while (!mFrames.offer(frame)) {
+                        VideoFrame stale = mFrames.poll();
+                        if (stale != null) {
+                            stale.close();
+                            mDropped++;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                frame.close();
+                Thread.currentThread().interrupt();
+                return;
+            }
+            // Closed while the frame was being offered
+            if (mClosed) {
+                release();
+            }
+        }
+
+        private void release() {
+            VideoFrame frame;
+            while ((frame = mFrames.poll()) != null) {
+                frame.close();
+            }
+        }
+    }
+
+    private final List<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /**
+     * Adds a subscriber, which receives every frame published from now on
+     * until it is closed.
+     *
+     * @param delivery
+     *        what to do when the subscriber falls behind.
+     * @param capacity
+     *        how many frames the subscriber's queue holds. Ignored for
+     *        {@link Delivery#LATEST}.
+     */
+    public Subscription subscribe(Delivery delivery, int capacity) {
+        Subscription subscription = new Subscription(delivery, capacity);
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * @return <code>true</code> if anybody is subscribed.
+     */
+    boolean hasSubscribers() {
+        return !mSubscriptions.isEmpty();
+    }
+
+    /**
+     * Passes a frame to every subscriber.
+     *
+     * @param frame
+     *        the decoded frame. Ownership stays with the caller; the
+     *        subscribers share a new reference to its buffers.
+     * @param captureNanos
+     *        when the frame was captured, on the {@link System#nanoTime()}
+     *        clock.
+     */
+    void publish(AVFrame frame, long captureNanos) {
+        long sequence = mSequence.incrementAndGet();
+        if (mSubscriptions.isEmpty()) {
+            return;
+        }
+        AVFrame ref = av_frame_clone(frame);
+        if (ref == null) {
+            return;
+        }
+        try (VideoFrame shared = new VideoFrame(ref, sequence, captureNanos)) {
+            for (Subscription subscription : mSubscriptions) {
+                subscription.offer(shared.retain());
+            }
+        }
+    }
+}
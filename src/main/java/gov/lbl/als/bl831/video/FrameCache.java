@@ -0,0 +1,125 @@
+package gov.lbl.als.bl831.video;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+/**
+ * Decoded frames of one pass through a video file, kept in memory as compact
+ * YUV planes so that later loops can be replayed without any decoding.
+ * <p>
+ * Frames are copied out of the decoder's buffer pool into tightly sized
+ * buffers of their own. If the total would exceed the memory limit the cache
+ * gives up, frees everything it holds and stays disabled, and playback keeps
+ * decoding the file instead.
+ * <p>
+ * Only decoding is saved: the frames are kept as decoded, so each is still
+ * converted for the display every time it is shown. Converted images would
+ * take several times the memory in a large window, and would all have to be
+ * redone whenever the window is resized or zoomed.
+ */
+class FrameCache implements AutoCloseable {
+
+    /**
+     * A cached frame and its presentation time within the pass.
+     */
+    static final class Entry {
+
+        final AVFrame frame;
+        final long mediaNanos;
+
+        Entry(AVFrame frame, long mediaNanos) {
+            this.frame = frame;
+            this.mediaNanos = mediaNanos;
+        }
+    }
+
+    private final long mLimitBytes;
+    private final List<Entry> mEntries = new ArrayList<>();
+    private long mBytes = 0;
+    private boolean mOverflowed = false;
+
+    /**
+     * @param limitBytes
+     *        the most memory the cached planes may take.
+     */
+    FrameCache(long limitBytes) {
+        mLimitBytes = limitBytes;
+    }
+
+    /**
+     * Stores a copy of a decoded frame.
+     *
+     * @param frame
+     *        the frame. Ownership stays with the caller.
+     * @param mediaNanos
+     *        its presentation time relative to the start of the pass.
+     * @return <code>false</code> if the cache is, or has now become, disabled
+     *         because the frames do not fit the memory limit.
+     */
+    boolean add(AVFrame frame, long mediaNanos) {
+        if (mOverflowed) {
+            return false;
+        }
+        long size = av_image_get_buffer_size(frame.format(), frame.width(), frame.height(), 1);
+        if (size < 0 || mBytes + size > mLimitBytes) {
+            System.out.printf("Video frame cache limit of %d MB exceeded, "
+                    + "decoding every loop%n", mLimitBytes >> 20);
+            mOverflowed = true;
+            close();
+            return false;
+        }
+        AVFrame copy = av_frame_alloc();
+        copy.format(frame.format());
+        copy.width(frame.width());
+        copy.height(frame.height());
+        if (av_frame_get_buffer(copy, 1) < 0 || av_frame_copy(copy, frame) < 0) {
+            av_frame_free(copy);
+            mOverflowed = true;
+            close();
+            return false;
+        }
+        av_frame_copy_props(copy, frame);
+        mEntries.add(new Entry(copy, mediaNanos));
+        mBytes += size;
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if frames were cached and none had to be
+     *         given up.
+     */
+    boolean isUsable() {
+        return !mOverflowed && !mEntries.isEmpty();
+    }
+
+    /**
+     * @return the cached frames in presentation order. They stay owned by the
+     *         cache; use {@code av_frame_clone} to hand out references.
+     */
+    List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * @return memory taken by the cached planes, in bytes.
+     */
+    long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Frees all cached frames. Clones handed out earlier stay valid.
+     */
+    @Override
+    public void close() {
+        for (Entry entry : mEntries) {
+            av_frame_free(entry.frame);
+        }
+        mEntries.clear();
+        mBytes = 0;
+    }
+}
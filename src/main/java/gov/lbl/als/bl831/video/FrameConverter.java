@@ -0,0 +1,556 @@
+package gov.lbl.als.bl831.video;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import org.bytedeco.ffmpeg.avutil.AVBufferRef;
+import org.bytedeco.ffmpeg.avutil.AVComponentDescriptor;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.avutil.AVPixFmtDescriptor;
+import org.bytedeco.ffmpeg.swscale.SwsContext;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.javacpp.SizeTPointer;
+
+import static org.bytedeco.ffmpeg.global.avutil.*;
+import static org.bytedeco.ffmpeg.global.swscale.*;
+
+/**
+ * Converts decoded frames into the write buffer of a {@link FrameExchange}
+ * with a single swscale pass, scaling them to the display size on the
+ * way. A crop rectangle can be set for digital zoom; the scaler then
+ * reads only that part of the frame, so zooming in costs less than showing
+ * the whole frame. In grayscale mode the scaler reads only the luma plane
+ * and writes one byte per pixel, so there is no color conversion at all.
+ * <p>
+ * The pass is split into horizontal slices of the output that swscale's own
+ * thread pool converts in parallel, each thread with a scaler context of its
+ * own writing a disjoint band of the staging buffer. Only one thread may
+ * convert at a time; the display size, crop, scaling flags, thread count and
+ * grayscale mode may be changed from any thread.
+ * <p>
+ * Converting a frame allocates nothing once the scaler context and staging
+ * buffer exist: the plane pointers are copied into a frame descriptor kept
+ * for the purpose and offset there for cropping, and the layout of the pixel
+ * format is only looked up when the format changes.
+ */
+class FrameConverter implements AutoCloseable {
+
+    private SwsContext context = null;
+    private final int[] contextParams = new int[10];
+    private AVFrame srcFrame = null;
+    private SizeTPointer srcPlanes = null;
+    private IntPointer srcLinesizes = null;
+    private AVFrame dstFrame = null;
+    private BytePointer dstBuffer = null;
+    private IntPointer dstInts = null;
+
+    private int layoutFormat = AV_PIX_FMT_NONE;
+    private boolean layoutCroppable = false;
+    private long layoutFlags = 0;
+    private int layoutChromaW = 0;
+    private int layoutChromaH = 0;
+    private final int[] layoutSteps = new int[4];
+    private final Rectangle cropRect = new Rectangle();
+
+    private volatile Dimension mDisplaySize = null;
+    private volatile Rectangle2D mCrop = null;
+    private volatile int mScalingFlags = SWS_BILINEAR;
+    private volatile boolean mGray = false;
+    private volatile int mThreads = 2;
+
+    /**
+     * @param size
+     *        the display area to fit frames into, or null for the native
+     *        frame size.
+     */
+    void setDisplaySize(Dimension size) {
+        mDisplaySize = size != null ? new Dimension(size) : null;
+    }
+
+    /**
+     * @param crop
+     *        the part of each frame to convert, in coordinates normalized to
+     *        [0,1] of the full frame, or null for the whole frame.
+     */
+    void setCrop(Rectangle2D crop) {
+        mCrop = crop != null ? (Rectangle2D) crop.clone() : null;
+    }
+
+    /**
+     * @param flags
+     *        the swscale filter flags, e.g. {@code SWS_BILINEAR}.
+     */
+    void setScalingFlags(int flags) {
+        mScalingFlags = flags;
+    }
+
+    /**
+     * Live frames are converted on the event dispatch thread as they are
+     * painted, which waits for the slowest slice, so the default is a small
+     * pool of two that leaves the other cores to decoding.
+     *
+     * @param threads
+     *        the number of threads converting slices of each frame, or 0 for
+     *        one per core.
+     */
+    void setThreads(int threads) {
+        mThreads = threads;
+    }
+
+    /**
+     * @param gray
+     *        if true, produce {@code TYPE_BYTE_GRAY} images from the luma of
+     *        each frame only.
+     */
+    void setGrayscale(boolean gray) {
+        mGray = gray;
+    }
+
+    /**
+     * Picks how far a decoder able to reduce resolution while decoding (see
+     * {@link VideoDecoder#setLowres}) may do so for the current display size
+     * and crop: the largest factor whose cropped picture is still at least
+     * as large as the image it is scaled to, so the display loses no detail.
+     *
+     * @param width The full-resolution frame width
+     * @param height The full-resolution frame height
+     * @param maxLowres The largest factor the decoder supports
+     * @return The factor, or 0 to decode at full resolution
+     */
+    int getLowres(int width, int height, int maxLowres) {
+        Dimension area = mDisplaySize;
+        if (area == null || width <= 0 || height <= 0) {
+            return 0;
+        }
+        Rectangle2D crop = mCrop;
+        double cropWidth = crop != null ? crop.getWidth() : 1.0;
+        double cropHeight = crop != null ? crop.getHeight() : 1.0;
+        Dimension shown = fitToDisplay(Math.max((int) Math.round(width * cropWidth), 1),
+                Math.max((int) Math.round(height * cropHeight), 1), area);
+        int lowres = 0;
+        while (lowres < maxLowres) {
+            // Decoders round the reduced size up, like AV_CEIL_RSHIFT
+            int w = -(-width >> (lowres + 1));
+            int h = -(-height >> (lowres + 1));
+            if (w * cropWidth < shown.width || h * cropHeight < shown.height) {
+                break;
+            }
+            lowres++;
+        }
+        return lowres;
+    }
+
+    /**
+     * Converts a decoded frame into the write buffer of the frame exchange in
+     * a single, slice-parallel scaler pass. The scaler writes into a native
+     * staging buffer laid out exactly like the image raster, which is then
+     * bulk-copied into the image's pixel array. The caller publishes the
+     * image.
+     *
+     * @param src The decoded frame
+     * @param exchange The exchange whose write buffer receives the frame
+     * @return The write buffer holding the frame, or null if the frame carries
+     *         no picture
+     */
+    BufferedImage convert(AVFrame src, FrameExchange exchange) {
+        return convert(src.width(), src.height(), src.format(),
+                src.color_range() == AVCOL_RANGE_JPEG, src.data(), src.linesize(),
+                exchange);
+    }
+
+    /**
+     * Converts a picture given as raw planes, such as a mapped V4L2 buffer,
+     * into the write buffer of the frame exchange. The caller publishes the
+     * image.
+     *
+     * @param w The picture width
+     * @param h The picture height
+     * @param format The {@code AV_PIX_FMT_*} layout of the planes
+     * @param fullRange True if the picture uses full-range (JPEG) levels
+     * @param data The plane pointers
+     * @param linesize The plane strides in bytes
+     * @param exchange The exchange whose write buffer receives the frame
+     * @return The write buffer holding the frame, or null if the picture is
+     *         empty
+     */
+    BufferedImage convert(int w, int h, int format, boolean fullRange,
+                          PointerPointer<?> data, IntPointer linesize,
+                          FrameExchange exchange) {
+        if (w <= 0 || h <= 0) {
+            return null;
+        }
+
+        // Normalize deprecated YUVJ* to corresponding YUV* while preserving full-range
+        // via colorspace details
+        int srcFmt = format;
+        int srcRange = fullRange ? 1 : 0;
+        switch (srcFmt) {
+            case AV_PIX_FMT_YUVJ420P:
+                srcFmt = AV_PIX_FMT_YUV420P;
+                srcRange = 1;
+                break;
+            case AV_PIX_FMT_YUVJ422P:
+                srcFmt = AV_PIX_FMT_YUV422P;
+                srcRange = 1;
+                break;
+            case AV_PIX_FMT_YUVJ444P:
+                srcFmt = AV_PIX_FMT_YUV444P;
+                srcRange = 1;
+                break;
+            case AV_PIX_FMT_YUVJ440P:
+                srcFmt = AV_PIX_FMT_YUV440P;
+                srcRange = 1;
+                break;
+            default:
+                break;
+        }
+
+        // Native-endian 0RGB matches the int layout of TYPE_INT_RGB.
+        boolean gray = mGray;
+        int dstFmt = AV_PIX_FMT_0RGB32;
+        if (gray) {
+            dstFmt = AV_PIX_FMT_GRAY8;
+            // Hand full-range luma to the scaler as a picture of its own.
+            // Limited-range luma has to be expanded, which swscale skips
+            // when copying gray to gray at the same size, so those frames
+            // keep their format; with a gray output it still reads luma only.
+            if (srcRange == 1 && hasLumaPlane(srcFmt)) {
+                srcFmt = AV_PIX_FMT_GRAY8;
+            }
+        }
+
+        // Crop by pointing the scaler at the region of interest inside the
+        // source planes; nothing outside it is read.
+        Rectangle crop = cropRectangle(w, h, srcFmt, mCrop);
+        if (crop != null) {
+            w = crop.width;
+            h = crop.height;
+        }
+
+        // Let swscale resize to the display area in the same pass, so the
+        // widget does not have to rescale the frame on the EDT.
+        Dimension dstSize = fitToDisplay(w, h, mDisplaySize);
+        int dw = dstSize.width;
+        int dh = dstSize.height;
+
+        int dstRange = 1; // keep full range output (common for UI processing)
+
+        // 1) Get or create scaler context, with its colorspace details
+        getContext(w, h, srcFmt, srcRange, dw, dh, dstFmt, dstRange, mScalingFlags, mThreads);
+
+        // 2) Point the destination plane at a staging buffer with the image's stride
+        BufferedImage image = exchange.getWriteBuffer(dw, dh, gray);
+        int stride = FrameExchange.getScanlineStride(image);
+        int size = stride * dh;
+        int pixelBytes = gray ? 1 : Integer.BYTES;
+        setDestination(dw, dh, dstFmt, stride * pixelBytes, size);
+        setSource(w, h, srcFmt, data, linesize, crop);
+
+        // 3) Scale from YUV -> 0RGB. The whole picture is sent at once, and
+        // receiving the whole output runs one slice per scaler thread.
+        int ret = sws_frame_start(context, dstFrame, srcFrame);
+        try {
+            if (ret >= 0) {
+                ret = sws_send_slice(context, 0, h);
+            }
+            if (ret >= 0) {
+                ret = sws_receive_slice(context, 0, dh);
+            }
+        } finally {
+            sws_frame_end(context);
+        }
+        if (ret < 0) {
+            throw new RuntimeException("swscale failed: " + ret);
+        }
+
+        // 4) One bulk copy into the image raster
+        if (gray) {
+            dstBuffer.position(0).get(FrameExchange.getGrayPixels(image), 0, size);
+        } else {
+            dstInts.position(0).get(FrameExchange.getPixels(image), 0, size);
+        }
+        return image;
+    }
+
+    /**
+     * Reuses the scaler context if it was made for the same conversion, or
+     * makes a new one. Unlike {@code sws_getCachedContext} this sets the
+     * ranges before the context is initialized, which keeps swscale from
+     * picking a plain copy for same-size conversions to gray that need their
+     * levels expanded.
+     */
+    private void getContext(int srcW, int srcH, int srcFmt, int srcRange, int dstW,
+                            int dstH, int dstFmt, int dstRange, int flags, int threads) {
+        int[] params = contextParams;
+        if (context != null && params[0] == srcW && params[1] == srcH
+                && params[2] == srcFmt && params[3] == srcRange && params[4] == dstW
+                && params[5] == dstH && params[6] == dstFmt && params[7] == dstRange
+                && params[8] == flags && params[9] == threads) {
+            return;
+        }
+        if (context != null) {
+            sws_freeContext(context);
+            context = null;
+        }
+        SwsContext c = sws_alloc_context();
+        if (c == null) {
+            throw new RuntimeException("sws_alloc_context returned null");
+        }
+        av_opt_set_int(c, "srcw", srcW, 0);
+        av_opt_set_int(c, "srch", srcH, 0);
+        av_opt_set_int(c, "src_format", srcFmt, 0);
+        av_opt_set_int(c, "src_range", srcRange, 0);
+        av_opt_set_int(c, "dstw", dstW, 0);
+        av_opt_set_int(c, "dsth", dstH, 0);
+        av_opt_set_int(c, "dst_format", dstFmt, 0);
+        av_opt_set_int(c, "dst_range", dstRange, 0);
+        av_opt_set_int(c, "sws_flags", flags, 0);
+        av_opt_set_int(c, "threads", threads, 0);
+        int ret = sws_init_context(c, null, null);
+        if (ret < 0) {
+            sws_freeContext(c);
+            throw new RuntimeException("sws_init_context failed: " + ret);
+        }
+
+        // BT.601 coefficients. For SD content, ITU-601 (bt470bg) is typical
+        // for MJPEG; change to SWS_CS_DEFAULT or SWS_CS_ITU709 if appropriate.
+        // They stay with the context, so they are set once per context.
+        IntPointer coefficients = sws_getCoefficients(SWS_CS_ITU601);
+        int brightness = 0;
+        int contrast = 1 << 16; // unity in swscale fixed-point
+        int saturation = 1 << 16; // unity in swscale fixed-point
+        sws_setColorspaceDetails(c, coefficients, srcRange, coefficients, dstRange,
+                brightness, contrast, saturation);
+
+        context = c;
+        params[0] = srcW;
+        params[1] = srcH;
+        params[2] = srcFmt;
+        params[3] = srcRange;
+        params[4] = dstW;
+        params[5] = dstH;
+        params[6] = dstFmt;
+        params[7] = dstRange;
+        params[8] = flags;
+        params[9] = threads;
+    }
+
+    /**
+     * Describes the staging buffer as the scaler's destination frame, first
+     * growing it if the picture does not fit. The buffer is allocated by
+     * FFmpeg as a reference-counted buffer, since {@code sws_frame_start}
+     * would otherwise allocate a new one for every frame.
+     */
+    private void setDestination(int w, int h, int format, int linesize, int pixels) {
+        if (dstFrame == null) {
+            dstFrame = av_frame_alloc();
+        }
+        long bytes = (long) linesize * h;
+        if (dstBuffer == null || dstBuffer.capacity() < bytes) {
+            av_buffer_unref(dstFrame.buf(0));
+            dstFrame.buf(0, null);
+            dstBuffer = null;
+            dstInts = null;
+            AVBufferRef buffer = av_buffer_alloc(bytes);
+            if (buffer == null) {
+                throw new OutOfMemoryError("av_buffer_alloc failed");
+            }
+            dstFrame.buf(0, buffer);
+            dstBuffer = new BytePointer(buffer.data()).capacity(bytes);
+            dstInts = new IntPointer(dstBuffer).capacity(pixels);
+        }
+        dstFrame.format(format);
+        dstFrame.width(w);
+        dstFrame.height(h);
+        dstFrame.data(0, dstBuffer);
+        dstFrame.linesize(0, linesize);
+    }
+
+    /**
+     * Describes the planes to convert as the scaler's source frame.
+     * {@code sws_frame_start} only takes reference-counted frames and would
+     * copy the picture of any other, but the planes are only borrowed for
+     * the duration of one conversion, so the frame holds a token buffer of
+     * its own instead of references to them. The plane pointers and strides
+     * are copied natively, then offset to the crop if there is one.
+     */
+    private void setSource(int w, int h, int format, PointerPointer<?> data,
+                           IntPointer linesize, Rectangle crop) {
+        if (srcFrame == null) {
+            srcFrame = av_frame_alloc();
+            AVBufferRef token = av_buffer_alloc(1);
+            if (token == null) {
+                throw new OutOfMemoryError("av_buffer_alloc failed");
+            }
+            srcFrame.buf(0, token);
+            srcPlanes = new SizeTPointer(srcFrame.data());
+            srcLinesizes = srcFrame.linesize();
+        }
+        srcFrame.format(format);
+        srcFrame.width(w);
+        srcFrame.height(h);
+        Pointer.memcpy(srcPlanes, data, 4L * srcPlanes.sizeof());
+        Pointer.memcpy(srcLinesizes, linesize, 4L * srcLinesizes.sizeof());
+        if (crop != null) {
+            cropPlanes(crop);
+        }
+    }
+
+    /**
+     * Checks whether a format keeps 8-bit luma in a plane of its own, which
+     * can then be read as a grayscale picture.
+     */
+    private static boolean hasLumaPlane(int format) {
+        AVPixFmtDescriptor desc = av_pix_fmt_desc_get(format);
+        if (desc == null || desc.nb_components() < 1
+                || (desc.flags() & (AV_PIX_FMT_FLAG_PLANAR | AV_PIX_FMT_FLAG_RGB
+                        | AV_PIX_FMT_FLAG_BE)) != AV_PIX_FMT_FLAG_PLANAR) {
+            return false;
+        }
+        AVComponentDescriptor luma = desc.comp(0);
+        return luma.plane() == 0 && luma.step() == 1 && luma.depth() == 8
+                && luma.shift() == 0 && luma.offset() == 0;
+    }
+
+    /**
+     * Looks up how the planes of a format are laid out, unless it is the
+     * format looked up last.
+     *
+     * @return True if the format can be cropped by offsetting its planes
+     */
+    private boolean setLayout(int format) {
+        if (format == layoutFormat) {
+            return layoutCroppable;
+        }
+        layoutFormat = format;
+        AVPixFmtDescriptor desc = av_pix_fmt_desc_get(format);
+        layoutCroppable = desc != null
+                && (desc.flags() & (AV_PIX_FMT_FLAG_BITSTREAM | AV_PIX_FMT_FLAG_HWACCEL)) == 0;
+        if (layoutCroppable) {
+            layoutFlags = desc.flags();
+            layoutChromaW = desc.log2_chroma_w();
+            layoutChromaH = desc.log2_chroma_h();
+            // Like FFmpeg, step by the first component found in each plane
+            Arrays.fill(layoutSteps, 0);
+            for (int c = desc.nb_components() - 1; c >= 0; c--) {
+                AVComponentDescriptor comp = desc.comp(c);
+                layoutSteps[comp.plane()] = comp.step();
+            }
+        }
+        return layoutCroppable;
+    }
+
+    /**
+     * Works out the crop rectangle in pixels, aligned to the chroma
+     * subsampling of the format so every plane starts on a whole sample.
+     *
+     * @return The crop rectangle, valid until the next call, or null to
+     *         convert the whole frame
+     */
+    private Rectangle cropRectangle(int w, int h, int format, Rectangle2D crop) {
+        if (crop == null || !setLayout(format)) {
+            return null;
+        }
+        int alignX = 1 << layoutChromaW;
+        int alignY = 1 << layoutChromaH;
+        int x = clamp((int) (crop.getX() * w), 0, w - 1) / alignX * alignX;
+        int y = clamp((int) (crop.getY() * h), 0, h - 1) / alignY * alignY;
+        int cw = clamp((int) Math.round(crop.getWidth() * w), 1, w - x);
+        int ch = clamp((int) Math.round(crop.getHeight() * h), 1, h - y);
+        if (cw >= alignX) {
+            cw = cw / alignX * alignX;
+        }
+        if (ch >= alignY) {
+            ch = ch / alignY * alignY;
+        }
+        if (x == 0 && y == 0 && cw == w && ch == h) {
+            return null;
+        }
+        cropRect.setBounds(x, y, cw, ch);
+        return cropRect;
+    }
+
+    /**
+     * Offsets each source plane pointer to the top left corner of the crop,
+     * the same way {@code av_frame_apply_cropping} does, using the layout
+     * {@link #cropRectangle} looked up.
+     */
+    private void cropPlanes(Rectangle crop) {
+        boolean rgb = (layoutFlags & AV_PIX_FMT_FLAG_RGB) != 0;
+        for (int i = 0; i < 4; i++) {
+            long plane = srcPlanes.get(i);
+            if (plane == 0) {
+                continue;
+            }
+            if (i == 1 && (layoutFlags & AV_PIX_FMT_FLAG_PAL) != 0) {
+                // The palette is not an image plane
+                continue;
+            }
+            boolean chroma = !rgb && (i == 1 || i == 2);
+            int shiftX = chroma ? layoutChromaW : 0;
+            int shiftY = chroma ? layoutChromaH : 0;
+            long offset = (long) (crop.y >> shiftY) * srcLinesizes.get(i)
+                    + (long) (crop.x >> shiftX) * layoutSteps[i];
+            srcPlanes.put(i, plane + offset);
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Frees the scaler context and staging buffer. The converter may be used
+     * again afterwards; they are recreated on demand.
+     */
+    @Override
+    public void close() {
+        if (context != null) {
+            sws_freeContext(context);
+            context = null;
+        }
+        if (srcFrame != null) {
+            av_frame_free(srcFrame);
+            srcFrame = null;
+            srcPlanes = null;
+            srcLinesizes = null;
+        }
+        if (dstFrame != null) {
+            av_frame_free(dstFrame);
+            dstFrame = null;
+            dstBuffer = null;
+            dstInts = null;
+        }
+    }
+
+    /**
+     * Computes the largest size with the frame's aspect ratio that fits the
+     * display area, using the same arithmetic as the video widget so the widget
+     * can draw the result without rescaling.
+     *
+     * @param width The frame width
+     * @param height The frame height
+     * @param area The display area, or null to keep the frame size
+     * @return The size to scale the frame to
+     */
+    static Dimension fitToDisplay(int width, int height, Dimension area) {
+        if (area == null || area.width <= 0 || area.height <= 0) {
+            return new Dimension(width, height);
+        }
+        double scaleFactor = (double) area.height / (double) height;
+        int destHeight = (int) (height * scaleFactor);
+        int destWidth = (int) (width * scaleFactor);
+        if (destWidth > area.width) {
+            scaleFactor = (double) area.width / (double) width;
+            destHeight = (int) (height * scaleFactor);
+            destWidth = (int) (width * scaleFactor);
+        }
+        return new Dimension(Math.max(destWidth, 1), Math.max(destHeight, 1));
+    }
+}
@@ -0,0 +1,175 @@
+package gov.lbl.als.bl831.video;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free triple buffer that hands decoded frames from the capture thread
+ * to the event dispatch thread.
+ * <p>
+ * Three pre-allocated images rotate between three owners: the slot the
+ * producer is writing, the slot the consumer is painting, and the newest
+ * completed slot waiting in between. {@link #publish()} swaps the written
+ * slot with the waiting one and {@link #acquire()} swaps the waiting slot with
+ * the painted one, so the producer never blocks, never writes an image the
+ * consumer is still using, and never allocates unless the frame size changes.
+ * There must be exactly one producer thread and one consumer thread.
+ * <p>
+ * The images are {@code TYPE_INT_RGB}, which is the layout of the default X11
+ * visual and of the widget's scaled image, so drawing them needs no color
+ * model conversion; or, in grayscale mode, {@code TYPE_BYTE_GRAY}, a quarter
+ * of the size. Scanlines are padded to a multiple of {@link #ALIGN_PIXELS} so
+ * swscale can use its aligned SIMD paths when writing them.
+ */
+class FrameExchange {
+
+    private static final int ALIGN_PIXELS = 8;
+
+    private static final int[] RGB_MASKS = { 0xff0000, 0x00ff00, 0x0000ff };
+
+    /**
+     * Set in {@link #mMiddle} when the middle slot holds a frame the consumer
+     * has not taken yet.
+     */
+    private static final int FRESH = 4;
+
+    private static final int INDEX_MASK = 3;
+
+    private final BufferedImage[] mSlots = new BufferedImage[3];
+
+    /**
+     * Index of the middle slot, possibly or'ed with {@link #FRESH}.
+     */
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+
+    /**
+     * Only touched by the producer.
+     */
+    private int mWriteIndex = 0;
+
+    /**
+     * Only touched by the consumer.
+     */
+    private int mReadIndex = 2;
+
+    /**
+     * Returns the slot the producer may write the next frame into,
+     * reallocating it if the requested size differs from its current one.
+     * Called by the producer only.
+     *
+     * @param width
+     *        image width in pixels.
+     * @param height
+     *        image height in pixels.
+     * @param gray
+     *        if true, a {@code TYPE_BYTE_GRAY} image rather than
+     *        {@code TYPE_INT_RGB}.
+     * @return an image of the requested size and type that no other thread
+     *         is using.
+     */
+    BufferedImage getWriteBuffer(int width, int height, boolean gray) {
+        BufferedImage image = mSlots[mWriteIndex];
+        if (image == null || image.getWidth() != width || image.getHeight() != height
+                || isGray(image) != gray) {
+            image = gray ? createGrayImage(width, height) : createImage(width, height);
+            mSlots[mWriteIndex] = image;
+        }
+        return image;
+    }
+
+    /**
+     * Makes the slot last returned by {@link #getWriteBuffer(int, int, boolean)} the
+     * newest completed frame. Called by the producer only.
+     */
+    void publish() {
+        mWriteIndex = mMiddle.getAndSet(mWriteIndex | FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * Takes the newest completed frame, returning the previously acquired one
+     * to the producer. If nothing new was published since the last call, the
+     * previously acquired frame is returned again. Called by the consumer only.
+     *
+     * @return the newest frame, or null if none was published yet.
+     */
+    BufferedImage acquire() {
+        if ((mMiddle.get() & FRESH) != 0) {
+            mReadIndex = mMiddle.getAndSet(mReadIndex) & INDEX_MASK;
+        }
+        return mSlots[mReadIndex];
+    }
+
+    /**
+     * @param image
+     *        an image created by this exchange.
+     * @return the backing pixel array, one packed RGB int per pixel.
+     */
+    static int[] getPixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * @param image
+     *        a grayscale image created by this exchange.
+     * @return the backing pixel array, one byte per pixel.
+     */
+    static byte[] getGrayPixels(BufferedImage image) {
+        return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * @param image
+     *        an image created by this exchange.
+     * @return <code>true</code> if it is a grayscale image.
+     */
+    static boolean isGray(BufferedImage image) {
+        return image.getType() == BufferedImage.TYPE_BYTE_GRAY;
+    }
+
+    /**
+     * @param image
+     *        an image created by this exchange.
+     * @return the number of pixels between the start of two scanlines.
+     */
+    static int getScanlineStride(BufferedImage image) {
+        if (isGray(image)) {
+            return ((ComponentSampleModel) image.getSampleModel()).getScanlineStride();
+        }
+        return ((SinglePixelPackedSampleModel) image.getSampleModel()).getScanlineStride();
+    }
+
+    private static BufferedImage createImage(int width, int height) {
+        int stride = (width + ALIGN_PIXELS - 1) / ALIGN_PIXELS * ALIGN_PIXELS;
+        SinglePixelPackedSampleModel sampleModel = new SinglePixelPackedSampleModel(
+                DataBuffer.TYPE_INT, width, height, stride, RGB_MASKS);
+        WritableRaster raster = Raster.createWritableRaster(sampleModel,
+                new DataBufferInt(stride * height), null);
+        DirectColorModel colorModel = new DirectColorModel(24,
+                RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2]);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    private static BufferedImage createGrayImage(int width, int height) {
+        int stride = (width + ALIGN_PIXELS - 1) / ALIGN_PIXELS * ALIGN_PIXELS;
+        PixelInterleavedSampleModel sampleModel = new PixelInterleavedSampleModel(
+                DataBuffer.TYPE_BYTE, width, height, 1, stride, new int[] { 0 });
+        WritableRaster raster = Raster.createWritableRaster(sampleModel,
+                new DataBufferByte(stride * height), null);
+        ComponentColorModel colorModel = new ComponentColorModel(
+                ColorSpace.getInstance(ColorSpace.CS_GRAY), new int[] { 8 }, false, true,
+                Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+}
@@ -0,0 +1,80 @@
+package gov.lbl.als.bl831.video;
+
+import java.awt.event.ActionListener;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+
+import gov.lbl.als.bl831.metrics.VideoMetrics;
+import gov.lbl.als.bl831.metrics.VideoMetrics.Stage;
+
+/**
+ * Tells the event dispatch thread that a new frame is available, keeping at
+ * most one notification queued at a time.
+ * <p>
+ * If the EDT has not yet run the previous notification when the next frame
+ * arrives, no new one is posted; the queued one will pick up the newest frame
+ * when it runs, since the listener always takes the latest image from the
+ * source; the caller learns of this from {@link #frameReady()}. This
+ * bounds the EDT queue to a single entry per source, so a busy EDT paints one
+ * late frame instead of a burst of stale ones.
+ * <p>
+ * There is only one listener: it is the consumer that takes the images, and
+ * the triple buffer behind them hands each image to a single consumer only.
+ */
+class FrameNotifier {
+
+    private final AtomicBoolean mPending = new AtomicBoolean();
+    private final VideoMetrics mMetrics;
+    private volatile ActionListener mListener = null;
+    private volatile long mPostedNanos;
+
+    private final Runnable mDispatch = this::dispatch;
+
+    /**
+     * @param metrics
+     *        receives the time notifications wait in the event queue.
+     */
+    FrameNotifier(VideoMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * @param listener
+     *        the listener to run on the event dispatch thread.
+     * @throws IllegalStateException
+     *         if there already is one.
+     */
+    synchronized void setListener(ActionListener listener) {
+        if (mListener != null) {
+            throw new IllegalStateException("Video source already has a listener");
+        }
+        mListener = listener;
+    }
+
+    private void dispatch() {
+        mMetrics.record(Stage.EDT_WAIT, System.nanoTime() - mPostedNanos);
+        // Clear first, so a frame published while the listener runs gets its
+        // own notification.
+        mPending.set(false);
+        mListener.actionPerformed(null);
+    }
+
+    /**
+     * Called by the capture thread after a frame has been published.
+     *
+     * @return <code>false</code> if a notification was still queued, so the
+     *         previous frame will never be shown.
+     */
+    boolean frameReady() {
+        if (mListener == null) {
+            return true;
+        }
+        if (mPending.compareAndSet(false, true)) {
+            mPostedNanos = System.nanoTime();
+            SwingUtilities.invokeLater(mDispatch);
+            return true;
+        }
+        return false;
+    }
+}
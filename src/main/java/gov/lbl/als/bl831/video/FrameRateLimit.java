@@ -0,0 +1,47 @@
+package gov.lbl.als.bl831.video;
+
+/**
+ * Upper limit on the rate at which frames are converted and shown, which can
+ * be changed at any time from any thread, e.g. by the idle governor. Frames
+ * held back by the limit are still read, and decoded where the codec needs
+ * every frame, so the newest frame is shown as soon as the limit is lifted.
+ */
+class FrameRateLimit {
+
+    private static final long PAUSED = Long.MAX_VALUE;
+
+    private volatile long mMinIntervalNanos = 0;
+
+    /**
+     * @param fps
+     *        the most frames per second to show, 0 to show none, or
+     *        {@link Double#POSITIVE_INFINITY} for no limit.
+     */
+    void setMaxFps(double fps) {
+        if (fps == Double.POSITIVE_INFINITY) {
+            mMinIntervalNanos = 0;
+        } else if (fps <= 0) {
+            mMinIntervalNanos = PAUSED;
+        } else {
+            mMinIntervalNanos = (long) (1e9 / fps);
+        }
+    }
+
+    /**
+     * @param nowNanos
+     *        the current {@link System#nanoTime()}.
+     * @param lastShownNanos
+     *        when the caller last let a frame through, or 0 if never.
+     * @return <code>true</code> if a frame may be shown now.
+     */
+    boolean admits(long nowNanos, long lastShownNanos) {
+        long interval = mMinIntervalNanos;
+        if (interval == 0) {
+            return true;
+        }
+        if (interval == PAUSED) {
+            return false;
+        }
+        return lastShownNanos == 0 || nowNanos - lastShownNanos >= interval;
+    }
+}
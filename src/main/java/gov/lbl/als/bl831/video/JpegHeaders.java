@@ -0,0 +1,170 @@
+package gov.lbl.als.bl831.video;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Checks and completes the headers of the JPEG frames of MJPEG streams.
+ * <p>
+ * Many USB cameras leave the Huffman tables out of their frames and rely on
+ * the decoder's defaults, which FFmpeg applies but image viewers and
+ * browsers do not all do. Such a frame becomes a complete JPEG file once the
+ * standard tables of the JPEG specification (ITU T.81 section K.3) are put
+ * in front of its scan, which is what FFmpeg's mjpeg2jpeg filter does.
+ */
+final class JpegHeaders {
+
+    private static final int SOI = 0xd8;
+    private static final int DHT = 0xc4;
+    private static final int SOS = 0xda;
+
+    private static final int NOT_JPEG = -1;
+    private static final int HAS_TABLES = -2;
+
+    /**
+     * The DHT segment, marker included, holding the standard luminance and
+     * chrominance DC and AC tables.
+     */
+    private static final byte[] STANDARD_TABLES = bytes(
+            0xff, 0xc4, 0x01, 0xa2,
+            // Luminance DC
+            0x00,
+            0x00, 0x01, 0x05, 0x01, 0x01, 0x01, 0x01, 0x01,
+            0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+            0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b,
+            // Chrominance DC
+            0x01,
+            0x00, 0x03, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01,
+            0x01, 0x01, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00,
+            0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b,
+            // Luminance AC
+            0x10,
+            0x00, 0x02, 0x01, 0x03, 0x03, 0x02, 0x04, 0x03,
+            0x05, 0x05, 0x04, 0x04, 0x00, 0x00, 0x01, 0x7d,
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+            0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+            0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
+            0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+            0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+            0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+            0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+            0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
+            0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+            0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa,
+            // Chrominance AC
+            0x11,
+            0x00, 0x02, 0x01, 0x02, 0x04, 0x04, 0x03, 0x04,
+            0x07, 0x05, 0x04, 0x04, 0x00, 0x01, 0x02, 0x77,
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+            0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+            0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34,
+            0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+            0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+            0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+            0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+            0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2,
+            0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9,
+            0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa);
+
+    private JpegHeaders() {
+    }
+
+    /**
+     * Checks that a JPEG frame has its own Huffman tables.
+     *
+     * @param bytes
+     *        the frame, from position 0 to the limit.
+     */
+    static boolean isStandalone(ByteBuffer bytes) {
+        return findScan(bytes) == HAS_TABLES;
+    }
+
+    /**
+     * Copies a JPEG frame to an array, putting in the standard Huffman tables
+     * if it has none of its own.
+     *
+     * @param bytes
+     *        the frame, from position 0 to the limit.
+     * @return the frame as a complete JPEG file, or null if it is not a JPEG
+     *         file.
+     */
+    static byte[] toStandalone(ByteBuffer bytes) {
+        int scan = findScan(bytes);
+        if (scan == NOT_JPEG) {
+            return null;
+        }
+        int size = bytes.limit();
+        ByteBuffer source = bytes.duplicate();
+        source.position(0);
+        if (scan == HAS_TABLES) {
+            byte[] jpeg = new byte[size];
+            source.get(jpeg);
+            return jpeg;
+        }
+        byte[] jpeg = new byte[size + STANDARD_TABLES.length];
+        source.limit(scan);
+        source.get(jpeg, 0, scan);
+        System.arraycopy(STANDARD_TABLES, 0, jpeg, scan, STANDARD_TABLES.length);
+        source.limit(size).position(scan);
+        source.get(jpeg, scan + STANDARD_TABLES.length, size - scan);
+        return jpeg;
+    }
+
+    /**
+     * Walks the marker segments in front of the first scan.
+     *
+     * @return the offset of the start of scan marker if no Huffman tables
+     *         come before it, {@link #HAS_TABLES} if they do, or
+     *         {@link #NOT_JPEG}.
+     */
+    private static int findScan(ByteBuffer bytes) {
+        int size = bytes.limit();
+        if (size < 4 || (bytes.get(0) & 0xff) != 0xff || (bytes.get(1) & 0xff) != SOI) {
+            return NOT_JPEG;
+        }
+        int pos = 2;
+        while (pos + 4 <= size) {
+            if ((bytes.get(pos) & 0xff) != 0xff) {
+                return NOT_JPEG;
+            }
+            int marker = bytes.get(pos + 1) & 0xff;
+            if (marker == DHT) {
+                return HAS_TABLES;
+            }
+            if (marker == SOS) {
+                return pos;
+            }
+            pos += 2 + (((bytes.get(pos + 2) & 0xff) << 8) | (bytes.get(pos + 3) & 0xff));
+        }
+        return NOT_JPEG;
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
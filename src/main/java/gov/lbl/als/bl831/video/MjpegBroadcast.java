@@ -0,0 +1,111 @@
+package gov.lbl.als.bl831.video;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+
+/**
+ * Hands the JPEG frames of one camera to any number of viewers, each through
+ * a small queue of its own.
+ * <p>
+ * The capture thread copies a frame out of its packet once, and only while
+ * somebody is watching; all viewers share that copy. A viewer whose queue is
+ * full loses its oldest frame, so a slow or stalled viewer only ever slows
+ * itself down.
+ * <p>
+ * Frames without Huffman tables of their own, as many USB cameras send, get
+ * the standard tables put in (see {@link JpegHeaders}), since browsers do not
+ * all decode them otherwise. Packets that are not JPEG files are not passed
+ * on.
+ */
+class MjpegBroadcast {
+
+    private static final int CLIENT_QUEUE_SIZE = 2;
+
+    /**
+     * One viewer's queue of frames.
+     */
+    final class Client implements AutoCloseable {
+
+        private final BlockingQueue<byte[]> mFrames = new ArrayBlockingQueue<>(CLIENT_QUEUE_SIZE);
+        private long mDropped = 0;
+
+        /**
+         * Waits for the next frame.
+         *
+         * @return the frame as a complete JPEG file, or null if none arrived
+         *         within the timeout. Must not be modified.
+         */
+        byte[] take(long timeoutMillis) throws InterruptedException {
+            return mFrames.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * @return frames this viewer was too slow to take.
+         */
+        long getDropped() {
+            return mDropped;
+        }
+
+        private void offer(byte[] frame) {
+            while (!mFrames.offer(frame)) {
+                if (mFrames.poll() != null) {
+                    mDropped++;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            mClients.remove(this);
+        }
+    }
+
+    private final List<Client> mClients = new CopyOnWriteArrayList<>();
+    private boolean mWarned = false;
+
+    /**
+     * Adds a viewer, which receives every frame published from now on until
+     * it is closed.
+     */
+    Client subscribe() {
+        Client client = new Client();
+        mClients.add(client);
+        return client;
+    }
+
+    /**
+     * @return the number of viewers.
+     */
+    int getClientCount() {
+        return mClients.size();
+    }
+
+    /**
+     * Passes a JPEG frame to every viewer without waiting for any of them.
+     * Called on the capture thread.
+     *
+     * @param packet
+     *        a packet of an MJPEG stream. Ownership stays with the caller.
+     */
+    void publish(AVPacket packet) {
+        if (mClients.isEmpty()) {
+            return;
+        }
+        byte[] frame = JpegHeaders.toStandalone(packet.data().capacity(packet.size()).asByteBuffer());
+        if (frame == null) {
+            if (!mWarned) {
+                System.err.println("Video stream has a frame that is not a JPEG file, not serving it");
+                mWarned = true;
+            }
+            return;
+        }
+        for (Client client : mClients) {
+            client.offer(frame);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package gov.lbl.als.bl831.video;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the video the kiosk receives to other viewers over HTTP, so they do
+ * not each open a connection to the camera.
+ * <p>
+ * Each camera added is served as <code>/NAME.mjpg</code> in
+ * <code>multipart/x-mixed-replace</code> form, which browsers and most video
+ * tools play. The JPEG frames are sent as the camera sent them, with
+ * no decoding or encoding; cameras with other codecs serve no frames. Each
+ * viewer has its own thread and a queue of its own (see
+ * {@link MjpegBroadcast}), so a slow viewer misses frames instead of holding
+ * up the kiosk or the other viewers.
+ * <p>
+ * A viewer that stops reading without closing the connection would leave its
+ * thread blocked in a socket write, holding one of the {@link #MAX_CLIENTS}
+ * places, until the TCP stack gave up. So each viewer's socket is closed if
+ * a single write takes longer than {@link #WRITE_TIMEOUT_MILLIS}. This is
+ * why the server speaks just enough HTTP itself: it needs the sockets, which
+ * the JDK's HTTP server does not hand out.
+ */
+public class MjpegStreamServer {
+
+    private static final int MAX_CLIENTS = 16;
+    private static final String BOUNDARY = "mjpegframe";
+
+    /**
+     * How long a viewer waits for a frame before checking whether the server
+     * is still running.
+     */
+    private static final long POLL_MILLIS = 1000;
+
+    /**
+     * How long a single write to a viewer may take before the viewer is
+     * disconnected.
+     */
+    private static final long WRITE_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * How long a viewer may take to send its request, and the most it may
+     * send.
+     */
+    private static final int REQUEST_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_REQUEST_BYTES = 8192;
+
+    /**
+     * One connected viewer, as seen by the watchdog.
+     */
+    private static final class Viewer {
+
+        final Socket socket;
+
+        /**
+         * {@link System#nanoTime()} at which the write in progress started,
+         * or 0 if none is.
+         */
+        volatile long writeStartNanos = 0;
+
+        Viewer(Socket socket) {
+            this.socket = socket;
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor;
+    private final ScheduledExecutorService mWatchdog;
+    private final Map<String, MjpegBroadcast> mBroadcasts = new ConcurrentHashMap<>();
+    private final Set<Viewer> mViewers = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger mClientCount = new AtomicInteger();
+    private volatile boolean mRunning = false;
+
+    /**
+     * @param port
+     *        the TCP port to listen on, on all interfaces.
+     * @throws IOException
+     *         if the port cannot be bound.
+     */
+    public MjpegStreamServer(int port) throws IOException {
+        mServerSocket = new ServerSocket();
+        mServerSocket.setReuseAddress(true);
+        mServerSocket.bind(new InetSocketAddress(port));
+        AtomicInteger threadNumber = new AtomicInteger();
+        mExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "MJPEG Viewer " + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        mWatchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "MJPEG Watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Serves a camera's frames as <code>/NAME.mjpg</code>. Must be called
+     * before {@link #start()}.
+     *
+     * @param name
+     *        the name in the URL path.
+     * @param source
+     *        the camera.
+     * @throws IllegalArgumentException
+     *         if a camera of that name is already served.
+     */
+    public void addSource(String name, FFmpegVideoSource source) {
+        String path = "/" + name + ".mjpg";
+        MjpegBroadcast broadcast = new MjpegBroadcast();
+        if (mBroadcasts.putIfAbsent(path, broadcast) != null) {
+            throw new IllegalArgumentException("Already serving " + path);
+        }
+        source.setBroadcast(broadcast);
+    }
+
+    public void start() {
+        mRunning = true;
+        Thread acceptor = new Thread(this::accept, "MJPEG Server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        mWatchdog.scheduleWithFixedDelay(this::checkWrites, WRITE_TIMEOUT_MILLIS / 5,
+                WRITE_TIMEOUT_MILLIS / 5, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops listening and disconnects all viewers.
+     */
+    public void stop() {
+        mRunning = false;
+        closeQuietly(mServerSocket);
+        for (Viewer viewer : mViewers) {
+            closeQuietly(viewer.socket);
+        }
+        mWatchdog.shutdownNow();
+        mExecutor.shutdownNow();
+    }
+
+    private void accept() {
+        while (mRunning) {
+            Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                if (mRunning) {
+                    System.err.println("Video stream server failed. " + e.getMessage());
+                }
+                return;
+            }
+            try {
+                mExecutor.execute(() -> serve(socket));
+            } catch (RejectedExecutionException e) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    /**
+     * Disconnects the viewers whose current write has taken too long.
+     */
+    private void checkWrites() {
+        long now = System.nanoTime();
+        for (Viewer viewer : mViewers) {
+            long start = viewer.writeStartNanos;
+            if (start != 0 && now - start > TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT_MILLIS)) {
+                System.out.printf("Video viewer at %s stopped reading, disconnecting%n",
+                        viewer.socket.getRemoteSocketAddress());
+                closeQuietly(viewer.socket);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        SocketAddress remote = socket.getRemoteSocketAddress();
+        try (Socket s = socket) {
+            s.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+            s.setTcpNoDelay(true);
+            String[] request = readRequestLine(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            if (request == null) {
+                respond(out, "400 Bad Request");
+                return;
+            }
+            if (!"GET".equals(request[0])) {
+                respond(out, "405 Method Not Allowed");
+                return;
+            }
+            int query = request[1].indexOf('?');
+            String path = query >= 0 ? request[1].substring(0, query) : request[1];
+            MjpegBroadcast broadcast = mBroadcasts.get(path);
+            if (broadcast == null) {
+                respond(out, "404 Not Found");
+                return;
+            }
+            if (mClientCount.incrementAndGet() > MAX_CLIENTS) {
+                mClientCount.decrementAndGet();
+                respond(out, "503 Service Unavailable");
+                return;
+            }
+            Viewer viewer = new Viewer(s);
+            mViewers.add(viewer);
+            MjpegBroadcast.Client client = broadcast.subscribe();
+            System.out.printf("Video viewer connected from %s%n", remote);
+            try {
+                write(viewer, out, ("HTTP/1.1 200 OK\r\n"
+                        + "Content-Type: multipart/x-mixed-replace;boundary=" + BOUNDARY + "\r\n"
+                        + "Cache-Control: no-cache\r\n"
+                        + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                while (mRunning) {
+                    byte[] frame = client.take(POLL_MILLIS);
+                    if (frame == null) {
+                        continue;
+                    }
+                    write(viewer, out, ("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\n"
+                            + "Content-Length: " + frame.length + "\r\n\r\n")
+                            .getBytes(StandardCharsets.US_ASCII));
+                    write(viewer, out, frame);
+                    write(viewer, out, new byte[] {'\r', '\n'});
+                }
+            } catch (IOException e) {
+                // Viewer went away, or stopped reading and was disconnected
+            } catch (InterruptedException e) {
+                // Server stopping
+            } finally {
+                client.close();
+                mViewers.remove(viewer);
+                mClientCount.decrementAndGet();
+                System.out.printf("Video viewer at %s disconnected, %d frames dropped%n",
+                        remote, client.getDropped());
+            }
+        } catch (IOException e) {
+            // Viewer went away before it was served
+        }
+    }
+
+    /**
+     * Writes to a viewer, with the watchdog timing the write.
+     */
+    private static void write(Viewer viewer, OutputStream out, byte[] bytes)
+            throws IOException {
+        viewer.writeStartNanos = System.nanoTime();
+        try {
+            out.write(bytes);
+        } finally {
+            viewer.writeStartNanos = 0;
+        }
+    }
+
+    /**
+     * Reads an HTTP request up to the blank line ending its headers, which
+     * are not needed.
+     *
+     * @return the method and target, or null if the request is malformed.
+     */
+    private static String[] readRequestLine(InputStream in) throws IOException {
+        InputStream buffered = new BufferedInputStream(in);
+        StringBuilder head = new StringBuilder();
+        int c;
+        while ((c = buffered.read()) != -1) {
+            head.append((char) c);
+            int n = head.length();
+            if (n >= 4 && head.charAt(n - 1) == '\n' && head.charAt(n - 3) == '\n') {
+                break;
+            }
+            if (n > MAX_REQUEST_BYTES) {
+                return null;
+            }
+        }
+        String[] parts = head.toString().split("\r?\n", 2)[0].split(" ");
+        if (parts.length != 3 || !parts[2].startsWith("HTTP/")) {
+            return null;
+        }
+        return parts;
+    }
+
+    private static void respond(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // Already closed
+        }
+    }
+}
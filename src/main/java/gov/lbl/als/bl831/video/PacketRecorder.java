@@ -0,0 +1,474 @@
+package gov.lbl.als.bl831.video;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVIOContext;
+import org.bytedeco.ffmpeg.avformat.AVInputFormat;
+import org.bytedeco.ffmpeg.avformat.AVOutputFormat;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avformat.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+/**
+ * Keeps the last few minutes of a live stream on disk, as the compressed
+ * packets the camera sent, so that a failed mount can be looked at afterwards.
+ * <p>
+ * Packets are remuxed into Matroska segment files of about
+ * {@link #SEGMENT_NANOS} each, with no decoding or encoding. Segments older
+ * than the recording length are deleted. All file work happens on a
+ * "Video Recorder" thread: the capture thread only adds a reference to each
+ * packet to a queue, and if the disk falls so far behind that the queue is
+ * full, packets are dropped from the recording rather than holding up the
+ * live view.
+ * <p>
+ * Packets are timed by when they were read, since live streams often carry no
+ * usable timestamps. An export closes the current segment and remuxes the
+ * last N seconds of segments into one playable file.
+ */
+class PacketRecorder implements AutoCloseable {
+
+    private static final long SEGMENT_NANOS = 10000000000L;
+    private static final int MAX_QUEUED_PACKETS = 250;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String EXTENSION = ".mkv";
+    private static final AVRational NANOS = av_make_q(1, 1000000000);
+
+    /**
+     * The codec parameters of one connection to the camera. Segments of
+     * different streams cannot be joined in an export.
+     */
+    private static final class StreamInfo {
+
+        final AVCodecParameters params;
+        final boolean intraOnly;
+
+        StreamInfo(AVCodecParameters params, boolean intraOnly) {
+            this.params = params;
+            this.intraOnly = intraOnly;
+        }
+    }
+
+    private static final class Packet {
+
+        final AVPacket packet;
+        final long nanos;
+
+        Packet(AVPacket packet, long nanos) {
+            this.packet = packet;
+            this.nanos = nanos;
+        }
+    }
+
+    private static final class Export {
+
+        final int seconds;
+        final long cutoffNanos;
+        final CompletableFuture<File> result = new CompletableFuture<>();
+
+        Export(int seconds) {
+            this.seconds = seconds;
+            this.cutoffNanos = System.nanoTime() - seconds * 1000000000L;
+        }
+    }
+
+    /**
+     * A segment file and the capture times of its first and last packets.
+     */
+    private static final class Segment {
+
+        final File file;
+        final StreamInfo stream;
+        final long startNanos;
+        long endNanos;
+
+        Segment(File file, StreamInfo stream, long startNanos) {
+            this.file = file;
+            this.stream = stream;
+            this.startNanos = startNanos;
+            this.endNanos = startNanos;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mLengthNanos;
+    private final BlockingQueue<Object> mQueue = new LinkedBlockingQueue<>();
+    private final AtomicInteger mQueuedPackets = new AtomicInteger();
+    private final Thread mThread;
+    private volatile boolean mClosed = false;
+
+    // Capture thread only
+    private boolean mBehind = false;
+
+    // Recorder thread only
+    private final Deque<Segment> mSegments = new ArrayDeque<>();
+    private StreamInfo mStream;
+    private Segment mSegment;
+    private AVFormatContext mOutput;
+    private long mLastPts;
+    private long mSegmentNumber = 0;
+    private long mRetryNanos = 0;
+
+    /**
+     * @param directory
+     *        where to keep the segment files and exports. Created if needed;
+     *        segments left over from an earlier run are deleted.
+     * @param seconds
+     *        how much video to keep.
+     */
+    PacketRecorder(File directory, int seconds) {
+        mDirectory = directory;
+        mLengthNanos = seconds * 1000000000L;
+        mThread = new Thread(this::run, "Video Recorder");
+        mThread.setDaemon(true);
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Starts a new stream, e.g. after a reconnect. Called on the capture
+     * thread before the stream's first packet.
+     *
+     * @param stream
+     *        the demuxed video stream. Its parameters are copied.
+     * @param intraOnly
+     *        <code>true</code> if every packet decodes on its own.
+     */
+    void beginStream(AVStream stream, boolean intraOnly) {
+        if (mClosed) {
+            return;
+        }
+        AVCodecParameters params = avcodec_parameters_alloc();
+        avcodec_parameters_copy(params, stream.codecpar());
+        mQueue.add(new StreamInfo(params, intraOnly));
+    }
+
+    /**
+     * Queues a packet for the recording without waiting. Called on the
+     * capture thread.
+     *
+     * @param packet
+     *        the packet. Ownership stays with the caller; the recorder takes
+     *        a reference of its own.
+     */
+    void record(AVPacket packet) {
+        if (mClosed) {
+            return;
+        }
+        if (mQueuedPackets.get() >= MAX_QUEUED_PACKETS) {
+            if (!mBehind) {
+                mBehind = true;
+                System.err.println("Video recording cannot keep up with the camera, "
+                        + "dropping packets");
+            }
+            return;
+        }
+        mBehind = false;
+        AVPacket ref = av_packet_clone(packet);
+        if (ref == null) {
+            return;
+        }
+        mQueuedPackets.incrementAndGet();
+        mQueue.add(new Packet(ref, System.nanoTime()));
+    }
+
+    /**
+     * Writes the last part of the recording to a new file in the recording
+     * directory, on the recorder thread.
+     *
+     * @param seconds
+     *        how much video to export, counted back from now.
+     * @return the exported file once it is written.
+     */
+    CompletableFuture<File> export(int seconds) {
+        Export export = new Export(seconds);
+        if (mClosed) {
+            export.result.completeExceptionally(new IOException("Recording is stopped"));
+        } else {
+            mQueue.add(export);
+        }
+        return export.result;
+    }
+
+    /**
+     * Stops the recorder thread after it has closed the current segment.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        mThread.interrupt();
+    }
+
+    private void run() {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            System.err.printf("Cannot create video recording directory %s%n", mDirectory);
+        }
+        File[] stale = mDirectory.listFiles(
+                (dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(EXTENSION));
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+        try {
+            while (true) {
+                Object item = mQueue.take();
+                if (item instanceof Packet) {
+                    Packet packet = (Packet) item;
+                    mQueuedPackets.decrementAndGet();
+                    try {
+                        write(packet.packet, packet.nanos);
+                    } finally {
+                        av_packet_free(packet.packet);
+                    }
+                } else if (item instanceof StreamInfo) {
+                    closeSegment();
+                    if (mStream != null && !isInUse(mStream)) {
+                        avcodec_parameters_free(mStream.params);
+                    }
+                    mStream = (StreamInfo) item;
+                } else if (item instanceof Export) {
+                    closeSegment();
+                    export((Export) item);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+        } finally {
+            closeSegment();
+            Object item;
+            while ((item = mQueue.poll()) != null) {
+                if (item instanceof Packet) {
+                    av_packet_free(((Packet) item).packet);
+                } else if (item instanceof StreamInfo) {
+                    avcodec_parameters_free(((StreamInfo) item).params);
+                } else if (item instanceof Export) {
+                    ((Export) item).result.completeExceptionally(
+                            new IOException("Recording is stopped"));
+                }
+            }
+        }
+    }
+
+    private void write(AVPacket packet, long nanos) {
+        if (mStream == null) {
+            return;
+        }
+        boolean key = mStream.intraOnly || (packet.flags() & AV_PKT_FLAG_KEY) != 0;
+        if (mSegment != null && key && nanos - mSegment.startNanos >= SEGMENT_NANOS) {
+            closeSegment();
+        }
+        if (mSegment == null) {
+            if (!key || nanos - mRetryNanos < 0) {
+                return;
+            }
+            try {
+                openSegment(nanos);
+            } catch (IOException e) {
+                System.err.printf("Video recording failed: %s%n", e.getMessage());
+                mRetryNanos = nanos + SEGMENT_NANOS;
+                return;
+            }
+        }
+        AVStream stream = mOutput.streams(0);
+        long pts = av_rescale_q(nanos - mSegment.startNanos, NANOS, stream.time_base());
+        if (pts <= mLastPts) {
+            pts = mLastPts + 1;
+        }
+        mLastPts = pts;
+        packet.stream_index(0);
+        packet.pts(pts);
+        packet.dts(pts);
+        packet.duration(0);
+        packet.pos(-1);
+        int ret = av_write_frame(mOutput, packet);
+        if (ret < 0) {
+            System.err.printf("Video recording failed: av_write_frame returned %d%n", ret);
+            closeSegment();
+            mRetryNanos = nanos + SEGMENT_NANOS;
+            return;
+        }
+        mSegment.endNanos = nanos;
+        trimRing(nanos);
+    }
+
+    private void openSegment(long nanos) throws IOException {
+        File file = new File(mDirectory, String.format("%s%06d%s", SEGMENT_PREFIX,
+                mSegmentNumber++, EXTENSION));
+        mOutput = openOutput(file, mStream.params);
+        mSegment = new Segment(file, mStream, nanos);
+        mLastPts = -1;
+        mSegments.addLast(mSegment);
+    }
+
+    private void closeSegment() {
+        if (mOutput != null) {
+            closeOutput(mOutput);
+            mOutput = null;
+        }
+        mSegment = null;
+    }
+
+    /**
+     * Deletes the oldest segments that lie wholly outside the recording
+     * length.
+     */
+    private void trimRing(long nowNanos) {
+        while (mSegments.size() > 1 && nowNanos - mSegments.peekFirst().endNanos > mLengthNanos) {
+            Segment old = mSegments.removeFirst();
+            old.file.delete();
+            if (old.stream != mStream && !isInUse(old.stream)) {
+                avcodec_parameters_free(old.stream.params);
+            }
+        }
+    }
+
+    private boolean isInUse(StreamInfo stream) {
+        for (Segment segment : mSegments) {
+            if (segment.stream == stream) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void export(Export export) {
+        List<Segment> segments = new ArrayList<>();
+        StreamInfo stream = null;
+        for (Segment segment : (Iterable<Segment>) mSegments::descendingIterator) {
+            if (segment.endNanos - export.cutoffNanos < 0
+                    || (stream != null && segment.stream != stream)) {
+                break;
+            }
+            stream = segment.stream;
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            export.result.completeExceptionally(new IOException("Nothing has been recorded"));
+            return;
+        }
+        Collections.reverse(segments);
+
+        File file = new File(mDirectory, "export-"
+                + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"))
+                + EXTENSION);
+        AVPacket packet = av_packet_alloc();
+        AVFormatContext output = null;
+        try {
+            output = openOutput(file, stream.params);
+            AVRational timeBase = output.streams(0).time_base();
+            long baseNanos = 0;
+            long lastPts = -1;
+            for (Segment segment : segments) {
+                AVFormatContext input = new AVFormatContext(null);
+                int ret = avformat_open_input(input, segment.file.getPath(), (AVInputFormat) null,
+                        (AVDictionary) null);
+                if (ret < 0) {
+                    throw new IOException("Cannot open " + segment.file + ": " + ret);
+                }
+                try {
+                    AVRational inputBase = input.streams(0).time_base();
+                    while (av_read_frame(input, packet) >= 0) {
+                        try {
+                            long nanos = segment.startNanos
+                                    + av_rescale_q(packet.pts(), inputBase, NANOS);
+                            if (nanos - export.cutoffNanos < 0) {
+                                continue;
+                            }
+                            if (lastPts < 0) {
+                                if (!stream.intraOnly && (packet.flags() & AV_PKT_FLAG_KEY) == 0) {
+                                    continue;
+                                }
+                                baseNanos = nanos;
+                            }
+                            long pts = av_rescale_q(nanos - baseNanos, NANOS, timeBase);
+                            if (pts <= lastPts) {
+                                pts = lastPts + 1;
+                            }
+                            lastPts = pts;
+                            packet.stream_index(0);
+                            packet.pts(pts);
+                            packet.dts(pts);
+                            packet.duration(0);
+                            packet.pos(-1);
+                            ret = av_write_frame(output, packet);
+                            if (ret < 0) {
+                                throw new IOException("av_write_frame failed: " + ret);
+                            }
+                        } finally {
+                            av_packet_unref(packet);
+                        }
+                    }
+                } finally {
+                    avformat_close_input(input);
+                }
+            }
+            closeOutput(output);
+            output = null;
+            System.out.printf("Exported the last %d s of video to %s%n", export.seconds, file);
+            export.result.complete(file);
+        } catch (IOException e) {
+            if (output != null) {
+                closeOutput(output);
+            }
+            file.delete();
+            export.result.completeExceptionally(e);
+        } finally {
+            av_packet_free(packet);
+        }
+    }
+
+    private static AVFormatContext openOutput(File file, AVCodecParameters params)
+            throws IOException {
+        AVFormatContext output = new AVFormatContext(null);
+        int ret = avformat_alloc_output_context2(output, (AVOutputFormat) null, "matroska",
+                file.getPath());
+        if (ret < 0) {
+            throw new IOException("Cannot create " + file + ": " + ret);
+        }
+        AVStream stream = avformat_new_stream(output, null);
+        avcodec_parameters_copy(stream.codecpar(), params);
+        stream.codecpar().codec_tag(0);
+        stream.time_base(av_make_q(1, 1000));
+        AVIOContext io = new AVIOContext(null);
+        ret = avio_open(io, file.getPath(), AVIO_FLAG_WRITE);
+        if (ret < 0) {
+            avformat_free_context(output);
+            throw new IOException("Cannot open " + file + ": " + ret);
+        }
+        output.pb(io);
+        ret = avformat_write_header(output, (AVDictionary) null);
+        if (ret < 0) {
+            avio_closep(output.pb());
+            avformat_free_context(output);
+            throw new IOException("Cannot write header of " + file + ": " + ret);
+        }
+        return output;
+    }
+
+    private static void closeOutput(AVFormatContext output) {
+        av_write_trailer(output);
+        avio_closep(output.pb());
+        avformat_free_context(output);
+    }
+}
@@ -0,0 +1,95 @@
+package gov.lbl.als.bl831.video;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+
+import gov.lbl.als.bl831.metrics.VideoMetrics;
+import gov.lbl.als.bl831.metrics.VideoMetrics.Stage;
+
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+/**
+ * Holds the newest decoded frame of a live stream, still in the decoder's
+ * own pixel format, until the display asks for it, and only then converts
+ * it.
+ * <p>
+ * A frame that is superseded before the display gets to it is freed without
+ * ever being converted, so a camera delivering more frames than the event
+ * dispatch thread paints costs only the decoding of the surplus. The
+ * conversion runs on the thread that takes the image, normally the EDT,
+ * which holds the scaler alone while it does; it converts straight to the
+ * display size, so this is one scaler pass per painted frame.
+ */
+class PendingFrame implements AutoCloseable {
+
+    private final AtomicReference<AVFrame> mFrame = new AtomicReference<>();
+    private final FrameConverter mConverter;
+    private final FrameExchange mExchange;
+    private final VideoMetrics mMetrics;
+
+    /**
+     * @param converter
+     *        the converter producing display images.
+     * @param exchange
+     *        the exchange the converted images are published to, which the
+     *        consumer then acquires them from.
+     * @param metrics
+     *        receives conversion timings and the counts of published and
+     *        superseded frames.
+     */
+    PendingFrame(FrameConverter converter, FrameExchange exchange, VideoMetrics metrics) {
+        mConverter = converter;
+        mExchange = exchange;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Makes a frame the newest, freeing the previous one if the display has
+     * not taken it yet. Called by the decoding thread.
+     *
+     * @param frame
+     *        the decoded frame. Ownership passes to this holder.
+     */
+    void put(AVFrame frame) {
+        AVFrame superseded = mFrame.getAndSet(frame);
+        if (superseded != null) {
+            av_frame_free(superseded);
+            mMetrics.frameSuperseded();
+        }
+    }
+
+    /**
+     * Converts the newest frame, if one arrived since the last call, and
+     * publishes it to the exchange. Called by the consumer only.
+     */
+    synchronized void convert() {
+        AVFrame frame = mFrame.getAndSet(null);
+        if (frame == null) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            if (mConverter.convert(frame, mExchange) != null) {
+                mExchange.publish();
+                mMetrics.record(Stage.CONVERT, System.nanoTime() - start);
+                mMetrics.framePublished();
+            }
+        } finally {
+            av_frame_free(frame);
+        }
+    }
+
+    /**
+     * Frees the frame not yet taken and the converter's buffers, after any
+     * conversion in progress has finished.
+     */
+    @Override
+    public synchronized void close() {
+        AVFrame frame = mFrame.getAndSet(null);
+        if (frame != null) {
+            av_frame_free(frame);
+        }
+        mConverter.close();
+    }
+}
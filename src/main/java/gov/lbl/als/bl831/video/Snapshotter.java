@@ -0,0 +1,275 @@
+package gov.lbl.als.bl831.video;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+
+import gov.lbl.als.bl831.video.FrameBus.Delivery;
+import gov.lbl.als.bl831.video.FrameBus.Subscription;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+/**
+ * Saves single frames of a video source to JPEG files without holding up
+ * capture or the display.
+ * <p>
+ * A snapshot is taken from the next packet or frame to come through the
+ * source after it was requested. Where the camera sends complete JPEG files,
+ * the capture thread hands a reference to the compressed frame over to the
+ * "Video Snapshot" thread, which writes it to the file as is; the capture
+ * thread only checks for waiting requests, which costs nothing when there
+ * are none. Decoded frames come from the source's {@link FrameBus} instead:
+ * while a snapshot is waiting the snapshot thread is subscribed to it, takes
+ * the next frame, converts it at full size and encodes it. At most
+ * {@link #MAX_PENDING} snapshots may be outstanding.
+ */
+class Snapshotter implements AutoCloseable {
+
+    private static final int MAX_PENDING = 16;
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final long POLL_MILLIS = 100;
+
+    private static final class Request {
+
+        final File file;
+        final CompletableFuture<File> result = new CompletableFuture<>();
+
+        Request(File file) {
+            this.file = file;
+        }
+    }
+
+    private final Queue<Request> mWaiting = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mPending = new AtomicInteger();
+    private final ThreadPoolExecutor mExecutor;
+    private final FrameBus mBus;
+
+    // Guarded by this
+    private Subscription mSubscription = null;
+
+    // Snapshot thread only
+    private final FrameConverter mConverter = new FrameConverter();
+    private final FrameExchange mExchange = new FrameExchange();
+
+    /**
+     * @param bus
+     *        the bus the source publishes its decoded frames to.
+     */
+    Snapshotter(FrameBus bus) {
+        mBus = bus;
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING), r -> {
+                    Thread thread = new Thread(r, "Video Snapshot");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * @param gray
+     *        if true, encode decoded frames from their luma only, for sources
+     *        whose decoder skips the color planes.
+     */
+    void setGrayscale(boolean gray) {
+        mConverter.setGrayscale(gray);
+    }
+
+    /**
+     * Asks for the next frame to be saved. May be called from any thread.
+     *
+     * @param file
+     *        the JPEG file to write.
+     * @return the file once it is written. Fails if too many snapshots are
+     *         pending, or if no frame arrives within
+     *         {@link #TIMEOUT_SECONDS}.
+     */
+    CompletableFuture<File> request(File file) {
+        Request request = new Request(file);
+        if (mPending.incrementAndGet() > MAX_PENDING) {
+            mPending.decrementAndGet();
+            request.result.completeExceptionally(new IOException("Too many snapshots pending"));
+            return request.result;
+        }
+        request.result.whenComplete((f, ex) -> mPending.decrementAndGet());
+        request.result.orTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        // Forget requests that timed out while the camera was gone
+        mWaiting.removeIf(r -> r.result.isDone());
+        mWaiting.add(request);
+        subscribe();
+        return request.result;
+    }
+
+    /**
+     * @return <code>true</code> if a snapshot is waiting for a frame.
+     */
+    boolean isWaiting() {
+        return !mWaiting.isEmpty();
+    }
+
+    /**
+     * Serves the waiting snapshots from a compressed packet, if it is a
+     * complete JPEG file.
+     *
+     * @param packet
+     *        the packet. Ownership stays with the caller.
+     * @param codecId
+     *        the {@code AV_CODEC_ID_*} of the stream.
+     */
+    void offerPacket(AVPacket packet, int codecId) {
+        if (codecId != AV_CODEC_ID_MJPEG) {
+            return;
+        }
+        if (!JpegHeaders.isStandalone(packet.data().capacity(packet.size()).asByteBuffer())) {
+            return;
+        }
+        Request request;
+        while ((request = mWaiting.poll()) != null) {
+            AVPacket ref = av_packet_clone(packet);
+            Request r = request;
+            dispatch(request, () -> {
+                try {
+                    writePacket(ref, r.file);
+                } finally {
+                    av_packet_free(ref);
+                }
+            }, () -> av_packet_free(ref));
+        }
+    }
+
+    /**
+     * Subscribes the snapshot thread to the frame bus, unless it already is.
+     */
+    private synchronized void subscribe() {
+        if (mSubscription != null) {
+            return;
+        }
+        Subscription subscription = mBus.subscribe(Delivery.LATEST, 1);
+        try {
+            mExecutor.execute(() -> serveFrames(subscription));
+            mSubscription = subscription;
+        } catch (RejectedExecutionException e) {
+            // Too many snapshots being written, or closed; the packets may
+            // still serve the waiting ones, or they time out
+            subscription.close();
+        }
+    }
+
+    /**
+     * Serves the waiting snapshots from the frames on the bus, on the
+     * snapshot thread, until none are left waiting.
+     */
+    private void serveFrames(Subscription subscription) {
+        try {
+            while (true) {
+                synchronized (this) {
+                    mWaiting.removeIf(r -> r.result.isDone());
+                    if (mWaiting.isEmpty()) {
+                        subscription.close();
+                        mSubscription = null;
+                        return;
+                    }
+                }
+                try (VideoFrame frame = subscription.take(POLL_MILLIS)) {
+                    if (frame == null) {
+                        continue;
+                    }
+                    Request request;
+                    while ((request = mWaiting.poll()) != null) {
+                        if (request.result.isDone()) {
+                            continue;
+                        }
+                        try {
+                            writeFrame(frame.getAVFrame(), request.file);
+                            request.result.complete(request.file);
+                        } catch (IOException | RuntimeException e) {
+                            request.result.completeExceptionally(e);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                subscription.close();
+                mSubscription = null;
+            }
+        }
+    }
+
+    /**
+     * Stops the snapshot thread once it has written the snapshots it has
+     * frames for. Snapshots still waiting for a frame fail.
+     */
+    @Override
+    public void close() {
+        Request request;
+        while ((request = mWaiting.poll()) != null) {
+            request.result.completeExceptionally(new IOException("Video source stopped"));
+        }
+        try {
+            mExecutor.execute(mConverter::close);
+        } catch (RejectedExecutionException e) {
+            // Already closed
+        }
+        mExecutor.shutdown();
+    }
+
+    private interface Job {
+        void run() throws IOException;
+    }
+
+    private void dispatch(Request request, Job job, Runnable release) {
+        try {
+            mExecutor.execute(() -> {
+                if (request.result.isDone()) {
+                    release.run();
+                    return;
+                }
+                try {
+                    job.run();
+                    request.result.complete(request.file);
+                } catch (IOException | RuntimeException e) {
+                    request.result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            release.run();
+            request.result.completeExceptionally(new IOException("Snapshot rejected", e));
+        }
+    }
+
+    private static void writePacket(AVPacket packet, File file) throws IOException {
+        ByteBuffer bytes = packet.data().capacity(packet.size()).asByteBuffer();
+        try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+    }
+
+    private void writeFrame(AVFrame frame, File file) throws IOException {
+        BufferedImage image = mConverter.convert(frame, mExchange);
+        if (image == null) {
+            throw new IOException("Frame has no picture");
+        }
+        if (!ImageIO.write(image, "jpg", file)) {
+            throw new IOException("No JPEG encoder");
+        }
+    }
+}
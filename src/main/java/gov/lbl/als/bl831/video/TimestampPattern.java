@@ -0,0 +1,117 @@
+package gov.lbl.als.bl831.video;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Machine-readable timestamp drawn into video frames, for measuring the
+ * latency from capture to paint.
+ * <p>
+ * The timestamp is the capture time in microseconds of {@link System#nanoTime()},
+ * truncated to 32 bits, drawn as a row of black and white cells across the top
+ * of the frame between fixed guard cells. The cells are large enough to survive
+ * scaling to any practical window size with any interpolation, so the pattern
+ * can be read back from the image the widget actually painted.
+ */
+public final class TimestampPattern {
+
+    private static final int[] LEADING_GUARD = { 1, 0 };
+    private static final int[] TRAILING_GUARD = { 0, 1 };
+    private static final int DATA_BITS = 32;
+    private static final int CELLS = LEADING_GUARD.length + DATA_BITS + TRAILING_GUARD.length;
+
+    private static final int WHITE = 0xffffff;
+    private static final int BLACK = 0x000000;
+
+    private TimestampPattern() {
+    }
+
+    /**
+     * Draws a capture time into the top strip of an image.
+     *
+     * @param image
+     *        the frame to stamp, as created by {@link FrameExchange}.
+     * @param captureNanos
+     *        the {@link System#nanoTime()} at which the frame was captured.
+     */
+    static void stamp(BufferedImage image, long captureNanos) {
+        int width = image.getWidth();
+        int stripHeight = getStripHeight(image.getHeight());
+        if (width < CELLS) {
+            return;
+        }
+        boolean gray = FrameExchange.isGray(image);
+        int[] pixels = gray ? null : FrameExchange.getPixels(image);
+        byte[] grayPixels = gray ? FrameExchange.getGrayPixels(image) : null;
+        int stride = FrameExchange.getScanlineStride(image);
+        long micros = (captureNanos / 1000) & 0xffffffffL;
+        for (int cell = 0; cell < CELLS; cell++) {
+            boolean white = getBit(cell, micros) != 0;
+            int x0 = cell * width / CELLS;
+            int x1 = (cell + 1) * width / CELLS;
+            for (int y = 0; y < stripHeight; y++) {
+                int row = y * stride;
+                if (gray) {
+                    Arrays.fill(grayPixels, row + x0, row + x1, white ? (byte) 0xff : 0);
+                } else {
+                    Arrays.fill(pixels, row + x0, row + x1, white ? WHITE : BLACK);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the timestamp back from a painted image and computes how long ago
+     * the frame was captured.
+     *
+     * @param image
+     *        the image as painted, possibly rescaled.
+     * @param nowNanos
+     *        the current {@link System#nanoTime()}.
+     * @return the latency in nanoseconds, or -1 if the image carries no
+     *         readable pattern.
+     */
+    public static long readLatency(BufferedImage image, long nowNanos) {
+        int width = image.getWidth();
+        if (width < CELLS) {
+            return -1;
+        }
+        int y = getStripHeight(image.getHeight()) / 2;
+        long micros = 0;
+        for (int cell = 0; cell < CELLS; cell++) {
+            int x = (2 * cell + 1) * width / (2 * CELLS);
+            int rgb = image.getRGB(x, y);
+            int luma = (((rgb >> 16) & 0xff) + ((rgb >> 8) & 0xff) + (rgb & 0xff)) / 3;
+            int bit = luma >= 128 ? 1 : 0;
+            int dataIndex = cell - LEADING_GUARD.length;
+            if (dataIndex < 0) {
+                if (bit != LEADING_GUARD[cell]) {
+                    return -1;
+                }
+            } else if (dataIndex >= DATA_BITS) {
+                if (bit != TRAILING_GUARD[dataIndex - DATA_BITS]) {
+                    return -1;
+                }
+            } else {
+                micros = (micros << 1) | bit;
+            }
+        }
+        long nowMicros = (nowNanos / 1000) & 0xffffffffL;
+        return ((nowMicros - micros) & 0xffffffffL) * 1000;
+    }
+
+    private static int getBit(int cell, long micros) {
+        int dataIndex = cell - LEADING_GUARD.length;
+        if (dataIndex < 0) {
+            return LEADING_GUARD[cell];
+        }
+        if (dataIndex >= DATA_BITS) {
+            return TRAILING_GUARD[dataIndex - DATA_BITS];
+        }
+        return (int) (micros >>> (DATA_BITS - 1 - dataIndex)) & 1;
+    }
+
+    private static int getStripHeight(int imageHeight) {
+        return Math.max(imageHeight / 12, 1);
+    }
+}
@@ -0,0 +1,452 @@
+package gov.lbl.als.bl831.video;
+
+import java.io.IOException;
+
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.PointerPointer;
+
+import io.tetrah.camerainfo.v4l2.ioctl.Ioctl;
+import io.tetrah.camerainfo.v4l2.ioctl.V4L2Ioctl;
+import jnr.ffi.LibraryLoader;
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import jnr.ffi.annotations.SaveError;
+import jnr.ffi.types.off_t;
+import jnr.ffi.types.size_t;
+
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+/**
+ * Streaming V4L2 capture on memory-mapped kernel buffers, for raw YUYV and
+ * NV12 devices such as HDMI capture cards.
+ * <p>
+ * The device's buffers are requested with {@code VIDIOC_REQBUFS}, mapped into
+ * our address space, and cycled with {@code VIDIOC_QBUF}/{@code VIDIOC_DQBUF}.
+ * A dequeued buffer is handed out as plane pointers into the mapped memory, so
+ * swscale converts straight from the kernel buffer without any intermediate
+ * copy, and is given back to the driver with {@link #requeue(Buffer)}. Each
+ * buffer carries the driver's capture timestamp.
+ * <p>
+ * The struct layouts below are those of the Linux UAPI headers on 64-bit
+ * platforms.
+ */
+class V4L2MmapCapture implements AutoCloseable {
+
+    public interface LibC {
+        @SaveError
+        int open(String path, int flags);
+
+        int close(int fd);
+
+        @SaveError
+        int ioctl(int fd, long request, Pointer arg);
+
+        @SaveError
+        Pointer mmap(Pointer addr, @size_t long length, int prot, int flags, int fd,
+                     @off_t long offset);
+
+        int munmap(Pointer addr, @size_t long length);
+
+        @SaveError
+        int poll(Pointer fds, int nfds, int timeout);
+    }
+
+    static final int V4L2_PIX_FMT_YUYV = V4L2Ioctl.fourcc("YUYV");
+    static final int V4L2_PIX_FMT_NV12 = V4L2Ioctl.fourcc("NV12");
+
+    private static final int O_RDWR = 2;
+    private static final int O_NONBLOCK = 04000;
+    private static final int PROT_READ = 1;
+    private static final int MAP_SHARED = 1;
+    private static final short POLLIN = 1;
+    private static final int EINTR = 4;
+    private static final int EAGAIN = 11;
+
+    private static final int V4L2_MEMORY_MMAP = 1;
+    private static final int V4L2_FIELD_NONE = 1;
+    private static final int V4L2_QUANTIZATION_FULL_RANGE = 1;
+    private static final int V4L2_BUF_FLAG_TIMESTAMP_MASK = 0xe000;
+    private static final int V4L2_BUF_FLAG_TIMESTAMP_MONOTONIC = 0x2000;
+
+    // sizeof(struct v4l2_format), v4l2_requestbuffers, v4l2_buffer, v4l2_streamparm
+    private static final int FORMAT_SIZE = 208;
+    private static final int REQUESTBUFFERS_SIZE = 20;
+    private static final int BUFFER_SIZE = 88;
+    private static final int STREAMPARM_SIZE = 204;
+
+    private static final int VIDIOC_S_FMT = Ioctl._IOWR('V', 5, FORMAT_SIZE);
+    private static final int VIDIOC_REQBUFS = Ioctl._IOWR('V', 8, REQUESTBUFFERS_SIZE);
+    private static final int VIDIOC_QUERYBUF = Ioctl._IOWR('V', 9, BUFFER_SIZE);
+    private static final int VIDIOC_QBUF = Ioctl._IOWR('V', 15, BUFFER_SIZE);
+    private static final int VIDIOC_DQBUF = Ioctl._IOWR('V', 17, BUFFER_SIZE);
+    private static final int VIDIOC_STREAMON = Ioctl._IOW('V', 18, Integer.BYTES);
+    private static final int VIDIOC_STREAMOFF = Ioctl._IOW('V', 19, Integer.BYTES);
+    private static final int VIDIOC_S_PARM = Ioctl._IOWR('V', 22, STREAMPARM_SIZE);
+
+    private static LibC sLibC;
+
+    /**
+     * One mapped kernel buffer, described as an FFmpeg-style picture.
+     */
+    static class Buffer {
+        private final int mIndex;
+        private final Pointer mMapping;
+        private final long mLength;
+        private final PointerPointer<BytePointer> mData = new PointerPointer<>(4);
+        private final IntPointer mLinesize = new IntPointer(4);
+        private long mTimestampNanos;
+        private int mSequence;
+
+        private Buffer(int index, Pointer mapping, long length) {
+            mIndex = index;
+            mMapping = mapping;
+            mLength = length;
+        }
+
+        /**
+         * @return the plane pointers into the mapped memory.
+         */
+        PointerPointer<BytePointer> getData() {
+            return mData;
+        }
+
+        /**
+         * @return the plane strides in bytes.
+         */
+        IntPointer getLinesize() {
+            return mLinesize;
+        }
+
+        /**
+         * @return when the driver captured the frame, on the
+         *         {@link System#nanoTime()} clock.
+         */
+        long getTimestampNanos() {
+            return mTimestampNanos;
+        }
+
+        /**
+         * @return the driver's frame sequence number.
+         */
+        int getSequence() {
+            return mSequence;
+        }
+    }
+
+    private final LibC mLibC;
+    private final Runtime mRuntime;
+    private final int mFd;
+    private final Pointer mBufferStruct;
+    private final Pointer mPollFd;
+    private final Buffer[] mBuffers;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mAvPixelFormat;
+    private final boolean mFullRange;
+    private boolean mStreaming = false;
+
+    /**
+     * @param fourcc
+     *        a V4L2 pixel format.
+     * @return <code>true</code> if this backend can capture it.
+     */
+    static boolean isSupported(String fourcc) {
+        return fourcc != null
+                && (V4L2Ioctl.fourcc(fourcc) == V4L2_PIX_FMT_YUYV
+                    || V4L2Ioctl.fourcc(fourcc) == V4L2_PIX_FMT_NV12);
+    }
+
+    /**
+     * Opens the device, sets its format and frame rate, and maps its buffers.
+     * Call {@link #start()} to begin streaming.
+     *
+     * @param device
+     *        the device path, e.g. /dev/video0.
+     * @param fourcc
+     *        YUYV or NV12.
+     * @param width
+     *        the requested frame width.
+     * @param height
+     *        the requested frame height.
+     * @param fps
+     *        the requested frame rate, or 0 to keep the driver's.
+     * @param bufferCount
+     *        how many kernel buffers to request.
+     * @throws IOException
+     *         if the device cannot be opened or configured.
+     */
+    V4L2MmapCapture(String device, String fourcc, int width, int height, int fps,
+                    int bufferCount) throws IOException {
+        mLibC = getLibC();
+        mRuntime = Runtime.getRuntime(mLibC);
+        mFd = mLibC.open(device, O_RDWR | O_NONBLOCK);
+        if (mFd < 0) {
+            throw error("open " + device);
+        }
+        mBufferStruct = Memory.allocateDirect(mRuntime, BUFFER_SIZE);
+        mPollFd = Memory.allocateDirect(mRuntime, 8);
+        Buffer[] buffers = null;
+        try {
+            Pointer format = Memory.allocateDirect(mRuntime, FORMAT_SIZE);
+            format.putInt(0, V4L2Ioctl.V4L2_BUF_TYPE_VIDEO_CAPTURE);
+            format.putInt(8, width);
+            format.putInt(12, height);
+            format.putInt(16, V4L2Ioctl.fourcc(fourcc));
+            format.putInt(20, V4L2_FIELD_NONE);
+            ioctl(VIDIOC_S_FMT, format, "VIDIOC_S_FMT");
+            mWidth = format.getInt(8);
+            mHeight = format.getInt(12);
+            int pixelFormat = format.getInt(16);
+            int bytesPerLine = format.getInt(24);
+            mFullRange = format.getInt(48) == V4L2_QUANTIZATION_FULL_RANGE;
+            if (pixelFormat == V4L2_PIX_FMT_YUYV) {
+                mAvPixelFormat = AV_PIX_FMT_YUYV422;
+            } else if (pixelFormat == V4L2_PIX_FMT_NV12) {
+                mAvPixelFormat = AV_PIX_FMT_NV12;
+            } else {
+                throw new IOException(device + " does not support " + fourcc);
+            }
+
+            if (fps > 0) {
+                Pointer parm = Memory.allocateDirect(mRuntime, STREAMPARM_SIZE);
+                parm.putInt(0, V4L2Ioctl.V4L2_BUF_TYPE_VIDEO_CAPTURE);
+                parm.putInt(12, 1);
+                parm.putInt(16, fps);
+                if (mLibC.ioctl(mFd, VIDIOC_S_PARM & 0xffffffffL, parm) < 0) {
+                    System.err.printf("%s: unable to set %d fps%n", device, fps);
+                }
+            }
+
+            Pointer request = Memory.allocateDirect(mRuntime, REQUESTBUFFERS_SIZE);
+            request.putInt(0, bufferCount);
+            request.putInt(4, V4L2Ioctl.V4L2_BUF_TYPE_VIDEO_CAPTURE);
+            request.putInt(8, V4L2_MEMORY_MMAP);
+            ioctl(VIDIOC_REQBUFS, request, "VIDIOC_REQBUFS");
+            int count = request.getInt(0);
+            if (count < 2) {
+                throw new IOException(device + ": not enough capture buffers");
+            }
+
+            buffers = new Buffer[count];
+            for (int i = 0; i < count; i++) {
+                prepareBufferStruct(i);
+                ioctl(VIDIOC_QUERYBUF, mBufferStruct, "VIDIOC_QUERYBUF");
+                long offset = mBufferStruct.getInt(64) & 0xffffffffL;
+                long length = mBufferStruct.getInt(72) & 0xffffffffL;
+                Pointer mapping = mLibC.mmap(null, length, PROT_READ, MAP_SHARED, mFd, offset);
+                if (mapping == null || mapping.address() == -1L) {
+                    throw error("mmap");
+                }
+                Buffer buffer = new Buffer(i, mapping, length);
+                buffer.mData.put(0, new MappedPointer(mapping.address(), length));
+                buffer.mLinesize.put(0, bytesPerLine);
+                if (mAvPixelFormat == AV_PIX_FMT_NV12) {
+                    long chroma = (long) bytesPerLine * mHeight;
+                    buffer.mData.put(1, new MappedPointer(mapping.address() + chroma,
+                            length - chroma));
+                    buffer.mLinesize.put(1, bytesPerLine);
+                }
+                buffers[i] = buffer;
+            }
+            mBuffers = buffers;
+        } catch (IOException | RuntimeException e) {
+            release(buffers);
+            throw e;
+        }
+    }
+
+    /**
+     * Queues all buffers and starts streaming.
+     *
+     * @throws IOException
+     *         if the driver refuses.
+     */
+    void start() throws IOException {
+        for (Buffer buffer : mBuffers) {
+            requeue(buffer);
+        }
+        Pointer type = Memory.allocateDirect(mRuntime, Integer.BYTES);
+        type.putInt(0, V4L2Ioctl.V4L2_BUF_TYPE_VIDEO_CAPTURE);
+        ioctl(VIDIOC_STREAMON, type, "VIDIOC_STREAMON");
+        mStreaming = true;
+    }
+
+    /**
+     * Waits for the next filled buffer and takes it from the driver.
+     *
+     * @param timeoutMillis
+     *        how long to wait.
+     * @return the buffer, which must be given back with
+     *         {@link #requeue(Buffer)}; or null if none arrived in time.
+     * @throws IOException
+     *         if the device failed, e.g. because it was unplugged.
+     */
+    Buffer dequeue(int timeoutMillis) throws IOException {
+        while (true) {
+            prepareBufferStruct(0);
+            if (mLibC.ioctl(mFd, VIDIOC_DQBUF & 0xffffffffL, mBufferStruct) == 0) {
+                break;
+            }
+            int errno = mRuntime.getLastError();
+            if (errno == EINTR) {
+                continue;
+            }
+            if (errno != EAGAIN) {
+                throw error("VIDIOC_DQBUF", errno);
+            }
+            mPollFd.putInt(0, mFd);
+            mPollFd.putShort(4, POLLIN);
+            mPollFd.putShort(6, (short) 0);
+            int ready = mLibC.poll(mPollFd, 1, timeoutMillis);
+            if (ready == 0) {
+                return null;
+            }
+            if (ready < 0 && mRuntime.getLastError() != EINTR) {
+                throw error("poll");
+            }
+        }
+
+        Buffer buffer = mBuffers[mBufferStruct.getInt(0)];
+        int flags = mBufferStruct.getInt(12);
+        if ((flags & V4L2_BUF_FLAG_TIMESTAMP_MASK) == V4L2_BUF_FLAG_TIMESTAMP_MONOTONIC) {
+            // CLOCK_MONOTONIC, the same clock as System.nanoTime() on Linux
+            buffer.mTimestampNanos = mBufferStruct.getLong(24) * 1000000000L
+                    + mBufferStruct.getLong(32) * 1000L;
+        } else {
+            buffer.mTimestampNanos = System.nanoTime();
+        }
+        buffer.mSequence = mBufferStruct.getInt(56);
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the driver to be filled again.
+     *
+     * @param buffer
+     *        a buffer returned by {@link #dequeue(int)}.
+     * @throws IOException
+     *         if the driver refuses.
+     */
+    void requeue(Buffer buffer) throws IOException {
+        prepareBufferStruct(buffer.mIndex);
+        ioctl(VIDIOC_QBUF, mBufferStruct, "VIDIOC_QBUF");
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the {@code AV_PIX_FMT_*} layout of the buffers.
+     */
+    int getAvPixelFormat() {
+        return mAvPixelFormat;
+    }
+
+    /**
+     * @return <code>true</code> if the driver reports full-range levels.
+     */
+    boolean isFullRange() {
+        return mFullRange;
+    }
+
+    /**
+     * Copies a dequeued buffer out of the mapped memory, for consumers that
+     * keep the frame after the buffer is given back to the driver.
+     *
+     * @return a new frame, to be freed with {@code av_frame_free}, or null
+     *         if it could not be allocated.
+     */
+    AVFrame copy(Buffer buffer) {
+        AVFrame frame = av_frame_alloc();
+        frame.width(mWidth);
+        frame.height(mHeight);
+        frame.format(mAvPixelFormat);
+        frame.color_range(mFullRange ? AVCOL_RANGE_JPEG : AVCOL_RANGE_MPEG);
+        if (av_frame_get_buffer(frame, 0) < 0) {
+            av_frame_free(frame);
+            return null;
+        }
+        av_image_copy(frame.data(), frame.linesize(), buffer.mData, buffer.mLinesize,
+                mAvPixelFormat, mWidth, mHeight);
+        return frame;
+    }
+
+    /**
+     * Stops streaming, unmaps the buffers and closes the device.
+     */
+    @Override
+    public void close() {
+        if (mStreaming) {
+            Pointer type = Memory.allocateDirect(mRuntime, Integer.BYTES);
+            type.putInt(0, V4L2Ioctl.V4L2_BUF_TYPE_VIDEO_CAPTURE);
+            mLibC.ioctl(mFd, VIDIOC_STREAMOFF & 0xffffffffL, type);
+            mStreaming = false;
+        }
+        release(mBuffers);
+    }
+
+    private void release(Buffer[] buffers) {
+        if (buffers != null) {
+            for (Buffer buffer : buffers) {
+                if (buffer != null) {
+                    mLibC.munmap(buffer.mMapping, buffer.mLength);
+                    buffer.mData.close();
+                    buffer.mLinesize.close();
+                }
+            }
+            Pointer request = Memory.allocateDirect(mRuntime, REQUESTBUFFERS_SIZE);
+            request.putInt(4, V4L2Ioctl.V4L2_BUF_TYPE_VIDEO_CAPTURE);
+            request.putInt(8, V4L2_MEMORY_MMAP);
+            mLibC.ioctl(mFd, VIDIOC_REQBUFS & 0xffffffffL, request);
+        }
+        mLibC.close(mFd);
+    }
+
+    private void prepareBufferStruct(int index) {
+        mBufferStruct.setMemory(0, BUFFER_SIZE, (byte) 0);
+        mBufferStruct.putInt(0, index);
+        mBufferStruct.putInt(4, V4L2Ioctl.V4L2_BUF_TYPE_VIDEO_CAPTURE);
+        mBufferStruct.putInt(60, V4L2_MEMORY_MMAP);
+    }
+
+    private void ioctl(int request, Pointer arg, String name) throws IOException {
+        if (mLibC.ioctl(mFd, request & 0xffffffffL, arg) < 0) {
+            throw error(name);
+        }
+    }
+
+    private IOException error(String operation) {
+        return error(operation, mRuntime.getLastError());
+    }
+
+    private static IOException error(String operation, int errno) {
+        return new IOException(operation + " failed: errno " + errno);
+    }
+
+    static synchronized LibC getLibC() {
+        if (sLibC == null) {
+            sLibC = LibraryLoader.create(LibC.class).load("c");
+        }
+        return sLibC;
+    }
+
+    /**
+     * JavaCPP view of memory we mapped ourselves. It has no deallocator, so
+     * closing it leaves the mapping alone.
+     */
+    private static class MappedPointer extends BytePointer {
+        MappedPointer(long address, long length) {
+            this.address = address;
+            this.limit = length;
+            this.capacity = length;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package gov.lbl.als.bl831.video;
+
+import java.io.IOException;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avcodec.AVCodecDescriptor;
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+/**
+ * Thin wrapper around an FFmpeg decoder for one video stream. The grabber
+ * only demuxes; decoding happens here so it can run on its own thread.
+ */
+class VideoDecoder implements AutoCloseable {
+
+    // From libavcodec/avcodec.h; not mapped by the JavaCPP presets.
+    private static final int FF_THREAD_FRAME = 1;
+    private static final int FF_THREAD_SLICE = 2;
+
+    private final AVStream mStream;
+    private final AVCodec mCodec;
+    private final int mThreads;
+    private final boolean mGray;
+    private final boolean mFrameThreads;
+    private final boolean mLowDelay;
+    private final boolean mIntraOnly;
+    private AVCodecContext mContext;
+    private int mLowres = 0;
+
+    /**
+     * Opens a decoder for the given stream.
+     *
+     * @param stream
+     *        the demuxed video stream.
+     * @param threads
+     *        number of decoder threads, or 0 to let FFmpeg pick one per core.
+     * @param gray
+     *        if true, lets the decoder skip the chroma planes, whose content
+     *        is then undefined. Only some decoders, such as MJPEG, do.
+     * @param frameThreads
+     *        if true, decode several frames in parallel as well as slices of
+     *        one frame. Frame threading holds back one frame per extra
+     *        thread, so it suits file playback, which decodes ahead, but not
+     *        live video.
+     * @param lowDelay
+     *        if true, output each frame as soon as its packet is decoded,
+     *        without waiting for later frames to settle their order.
+     * @throws IOException
+     *         if no decoder exists for the stream's codec or it fails to open.
+     */
+    VideoDecoder(AVStream stream, int threads, boolean gray, boolean frameThreads,
+                 boolean lowDelay) throws IOException {
+        AVCodecParameters par = stream.codecpar();
+        mCodec = avcodec_find_decoder(par.codec_id());
+        if (mCodec == null) {
+            throw new IOException("No decoder for codec id " + par.codec_id());
+        }
+        mStream = stream;
+        mThreads = threads;
+        mGray = gray;
+        mFrameThreads = frameThreads;
+        mLowDelay = lowDelay;
+        mContext = open(0);
+
+        AVCodecDescriptor descriptor = avcodec_descriptor_get(par.codec_id());
+        mIntraOnly = descriptor != null && (descriptor.props() & AV_CODEC_PROP_INTRA_ONLY) != 0;
+    }
+
+    private AVCodecContext open(int lowres) throws IOException {
+        AVCodecContext context = avcodec_alloc_context3(mCodec);
+        if (context == null) {
+            throw new IOException("avcodec_alloc_context3 failed");
+        }
+        int ret = avcodec_parameters_to_context(context, mStream.codecpar());
+        if (ret < 0) {
+            avcodec_free_context(context);
+            throw new IOException("avcodec_parameters_to_context failed: " + ret);
+        }
+        context.pkt_timebase(mStream.time_base());
+        context.thread_count(mThreads);
+        context.thread_type(mFrameThreads ? FF_THREAD_FRAME | FF_THREAD_SLICE : FF_THREAD_SLICE);
+        if (mLowDelay) {
+            context.flags(context.flags() | AV_CODEC_FLAG_LOW_DELAY);
+        }
+        if (mGray) {
+            context.flags(context.flags() | AV_CODEC_FLAG_GRAY);
+        }
+        context.lowres(lowres);
+        ret = avcodec_open2(context, mCodec, (AVDictionary) null);
+        if (ret < 0) {
+            avcodec_free_context(context);
+            throw new IOException("avcodec_open2 failed: " + ret);
+        }
+        return context;
+    }
+
+    /**
+     * @return <code>true</code> if every packet decodes on its own (MJPEG, raw
+     *         video), so packets may be dropped without corrupting later frames.
+     */
+    boolean isIntraOnly() {
+        return mIntraOnly;
+    }
+
+    /**
+     * @return the largest reduced-resolution factor {@link #setLowres} takes,
+     *         or 0 if this decoder can only decode at full resolution. Only
+     *         intra-only decoders such as MJPEG qualify, since changing the
+     *         factor means reopening the decoder.
+     */
+    int getMaxLowres() {
+        return mIntraOnly ? mCodec.max_lowres() : 0;
+    }
+
+    /**
+     * @return the current reduced-resolution factor; frames are decoded at
+     *         the stream's size divided by 2 to this power.
+     */
+    int getLowres() {
+        return mLowres;
+    }
+
+    /**
+     * @return the stream's full-resolution width, or 0 if not yet known.
+     */
+    int getWidth() {
+        return mStream.codecpar().width();
+    }
+
+    /**
+     * @return the stream's full-resolution height, or 0 if not yet known.
+     */
+    int getHeight() {
+        return mStream.codecpar().height();
+    }
+
+    /**
+     * Changes how far pictures are reduced while decoding, for decoders that
+     * can skip the detail, e.g. the high-frequency DCT coefficients of
+     * MJPEG. FFmpeg only reads the factor when the decoder opens, so it is
+     * reopened; the caller flushes the frames it still holds first.
+     *
+     * @param lowres
+     *        frames are decoded at the stream's size divided by 2 to this
+     *        power, from 0 up to {@link #getMaxLowres()}.
+     * @throws IOException
+     *         if the decoder fails to reopen.
+     */
+    void setLowres(int lowres) throws IOException {
+        if (lowres == mLowres) {
+            return;
+        }
+        AVCodecContext context = open(lowres);
+        avcodec_free_context(mContext);
+        mContext = context;
+        mLowres = lowres;
+    }
+
+    /**
+     * Feeds a packet to the decoder. Invalid packets are ignored, since a
+     * single corrupt frame on a live stream should not end capture.
+     *
+     * @param packet
+     *        the packet, or null to signal end of stream and flush the
+     *        decoder. Ownership stays with the caller.
+     * @return <code>false</code> if the decoder has no room and frames must be
+     *         received before the packet can be sent again.
+     */
+    boolean send(AVPacket packet) {
+        int ret = avcodec_send_packet(mContext, packet);
+        return ret != AVERROR_EAGAIN();
+    }
+
+    /**
+     * Takes the next decoded frame, if any.
+     *
+     * @return a newly allocated frame owned by the caller, who must release it
+     *         with {@code av_frame_free}; or null if the decoder needs more
+     *         input or is fully flushed.
+     */
+    AVFrame receive() {
+        AVFrame frame = av_frame_alloc();
+        if (avcodec_receive_frame(mContext, frame) < 0) {
+            av_frame_free(frame);
+            return null;
+        }
+        return frame;
+    }
+
+    /**
+     * Discards any buffered frames and makes a flushed decoder accept packets
+     * again, e.g. after seeking back to the start of a file.
+     */
+    void reset() {
+        avcodec_flush_buffers(mContext);
+    }
+
+    @Override
+    public void close() {
+        avcodec_free_context(mContext);
+    }
+}
@@ -0,0 +1,109 @@
+package gov.lbl.als.bl831.video;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+/**
+ * A decoded frame shared between the subscribers of a {@link FrameBus}.
+ * <p>
+ * The picture is an FFmpeg frame in the source's own pixel format, usually
+ * YUV, and is never written to once published, so any number of threads may
+ * read it at the same time. The handle is reference counted: each holder
+ * {@link #close() closes} it when done, and the picture is freed when the
+ * last one does. A holder that wants to keep the frame past handing it on
+ * calls {@link #retain()} first.
+ */
+public final class VideoFrame implements AutoCloseable {
+
+    private final AVFrame mFrame;
+    private final long mSequence;
+    private final long mCaptureNanos;
+    private final AtomicInteger mRefs = new AtomicInteger(1);
+
+    /**
+     * @param frame
+     *        the picture. The handle takes ownership and frees it.
+     * @param sequence
+     *        the frame's number in its source.
+     * @param captureNanos
+     *        when the frame was captured.
+     */
+    VideoFrame(AVFrame frame, long sequence, long captureNanos) {
+        mFrame = frame;
+        mSequence = sequence;
+        mCaptureNanos = captureNanos;
+    }
+
+    /**
+     * Adds a reference, to be released with its own {@link #close()}.
+     *
+     * @return this frame.
+     * @throws IllegalStateException
+     *         if the frame was already freed.
+     */
+    public VideoFrame retain() {
+        int refs;
+        do {
+            refs = mRefs.get();
+            if (refs <= 0) {
+                throw new IllegalStateException("Video frame already released");
+            }
+        } while (!mRefs.compareAndSet(refs, refs + 1));
+        return this;
+    }
+
+    /**
+     * Releases one reference, freeing the picture if it was the last.
+     */
+    @Override
+    public void close() {
+        int refs = mRefs.decrementAndGet();
+        if (refs == 0) {
+            av_frame_free(mFrame);
+        } else if (refs < 0) {
+            throw new IllegalStateException("Video frame released twice");
+        }
+    }
+
+    /**
+     * @return the number of the frame in its source, counting from 1. Frames
+     *         the source captured but skipped leave gaps.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return when the frame was captured, on the {@link System#nanoTime()}
+     *         clock. For file playback, when the frame is due to be shown.
+     */
+    public long getCaptureNanos() {
+        return mCaptureNanos;
+    }
+
+    /**
+     * @return the {@code AV_PIX_FMT_*} of the picture.
+     */
+    public int getPixelFormat() {
+        return mFrame.format();
+    }
+
+    public int getWidth() {
+        return mFrame.width();
+    }
+
+    public int getHeight() {
+        return mFrame.height();
+    }
+
+    /**
+     * @return the picture, which must not be modified and is only valid until
+     *         this handle is closed.
+     */
+    public AVFrame getAVFrame() {
+        return mFrame;
+    }
+}
@@ -538,6 +538,18 @@ public class Camera implements ActionListener {
         return lastImage;
     }
 
+    /**
+     * Returns the number of frames skipped because they were byte-identical
+     * to the previous frame
+     */
+    public long getSkippedFrames() {
+        if (reader == null) {
+            return 0;
+        }
+
+        return reader.getSkippedFrames();
+    }
+
     /**
      * Returns the status of the video stream
      */
@@ -10,6 +10,7 @@ import java.awt.event.ActionListener;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.util.zip.CRC32C;
 
 import javax.imageio.ImageIO;
 
@@ -32,6 +33,10 @@ class CameraReadMJPEG extends Thread {
     private int bufferSize;
     private boolean readBuffer;
 
+    private final CRC32C checksum = new CRC32C();
+    private long lastFingerprint;
+    private volatile long skippedFrames;
+
     /** Creates a new instance of CameraReadMJPEG */
     public CameraReadMJPEG(DataInputStream dis) {
         super();
@@ -47,6 +52,9 @@ class CameraReadMJPEG extends Thread {
         bufferPosition = 0;
         bufferSize = 0;
         readBuffer = false;
+
+        lastFingerprint = -1;
+        skippedFrames = 0;
     }
 
     // Starts the video stream
@@ -73,9 +81,19 @@ class CameraReadMJPEG extends Thread {
                         imageBuffer[readPosition++] = value;
                     }
 
-                    lastImage = ImageIO.read(new ByteArrayInputStream(imageBuffer));
-                    if (lastImage != null && imageListener != null) {
-                        imageListener.actionPerformed(imageEvent);
+                    // Static scenes often come as byte-identical JPEGs;
+                    // don't decode or repaint those again
+                    checksum.reset();
+                    checksum.update(imageBuffer, 0, bufferSize);
+                    long fingerprint = ((long) bufferSize << 32) | checksum.getValue();
+                    if (fingerprint == lastFingerprint && lastImage != null) {
+                        skippedFrames++;
+                    } else {
+                        lastFingerprint = fingerprint;
+                        lastImage = ImageIO.read(new ByteArrayInputStream(imageBuffer));
+                        if (lastImage != null && imageListener != null) {
+                            imageListener.actionPerformed(imageEvent);
+                        }
                     }
 
                     imageBuffer = null;
@@ -126,6 +144,11 @@ class CameraReadMJPEG extends Thread {
         return result;
     }
 
+    // Gets the number of frames skipped because they were identical to the previous one
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
     // Returns the status of the video stream
     public boolean isRunning() {
         return imageLoop;